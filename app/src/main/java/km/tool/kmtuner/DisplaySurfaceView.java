@@ -7,9 +7,16 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
+
+import java.util.concurrent.locks.LockSupport;
+
+import km.tool.kmtuner.dsp.Instrumentation;
+import km.tool.kmtuner.dsp.Tuning;
 
 /**
  * Created by Kenta on 2016/07/17.
@@ -23,6 +30,17 @@ public class DisplaySurfaceView extends SurfaceView
 
     private volatile boolean stopRequested = false;
 
+    /** Set by surfaceChanged(); the render thread rebuilds the static layer. */
+    private volatile boolean layoutChanged = false;
+
+    /** Set when the surface needs a redraw although the reading has not changed. */
+    private volatile boolean redrawRequested = true;
+
+    private volatile Thread mRenderThread;
+
+    /** Without new results the render thread wakes up this often to check stopRequested. */
+    private static final long IDLE_WAIT_NANOS = 1000 * 1000 * 1000L;
+
     public DisplaySurfaceView(Context context)
     {
         super(context);
@@ -39,12 +57,16 @@ public class DisplaySurfaceView extends SurfaceView
     {
         mScreenWidth = width;
         mScreenHeight = height;
+
+        layoutChanged = true;
+        requestRedraw();
     }
 
     @Override /** The implementation of  SurfaceHolder.Callback */
     public void surfaceCreated(SurfaceHolder holder)
     {
-        new Thread(this).start();
+        mRenderThread = new Thread(this);
+        mRenderThread.start();
     }
 
     @Override /** The implementation of  SurfaceHolder.Callback */
@@ -53,6 +75,20 @@ public class DisplaySurfaceView extends SurfaceView
         stopRequested = true;
         Tuner.INSTANCE.switchOFF();
         mSurfaceHolder.removeCallback(this);
+
+        requestRedraw();
+    }
+
+    /** Makes the render thread draw once more, even if the reading is unchanged. */
+    private void requestRedraw()
+    {
+        redrawRequested = true;
+
+        Thread thread = mRenderThread;
+        if(thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
     }
 
     @Override /** The implementation of Runnable */
@@ -76,36 +112,38 @@ public class DisplaySurfaceView extends SurfaceView
         paint_txt_pitch.setTypeface(
                 Typeface.createFromAsset(getContext().getAssets(),
                         "7-Segment-Display-Extended.ttf"));
-        float pos_txt_pitch_x = (mScreenWidth / 2.0f)
-                - (paint_txt_pitch.measureText("88") / 2.0f);
-        float pos_txt_pitch_y = (mScreenHeight / 2.0f)
-                - ((paint_txt_pitch.ascent() + paint_txt_pitch.descent()) / 2.0f);
 
         Paint paint_bmp_led_off = new Paint();
         paint_bmp_led_off.setAntiAlias(true);
-        float pos_led_center_x = (mScreenWidth / 2.0f) - (dip2px(48.0f) / 2.0f);
-        float pos_led_left_x = pos_led_center_x - dip2px(48f);
-        float pos_led_right_x = pos_led_center_x + dip2px(48f);
-        float pos_led_shared_y = (mScreenHeight / 2.0f) - dip2px(96.0f);
 
         Paint paint_txt_accidental = new Paint();
         paint_txt_accidental.setAntiAlias(true);
         paint_txt_accidental.setColor(Color.rgb(196, 196, 196));
         paint_txt_accidental.setTextSize(32f);
-        float pos_flat_x = (mScreenWidth / 2.0f) -  (dip2px(48f) + paint_txt_accidental.measureText("♭") / 2.0f);
-        float pos_sharp_x = (mScreenWidth / 2.0f) +  (dip2px(48f) - paint_txt_accidental.measureText("♯") / 2.0f);
-        float pos_accidental_shared_y = (mScreenHeight / 2.0f) - dip2px(96.0f);
 
 
-        long FRAME_RATE = 20;
-        long FRAME_TIME = 1000 / FRAME_RATE;
-        long start_time;
-        long wait_time;
+        /**
+         * Redraws happen only when the displayed reading changes, and at most once per
+         * display refresh. Times come from the monotonic System.nanoTime(); posting the
+         * canvas then waits for the surface's next vsync. (Choreographer needs API 16
+         * and a Looper thread, so it is not used here.)
+         */
+        long frame_period_nanos = (long) (1e9 / getRefreshRate());
+        long last_draw_nanos = System.nanoTime() - frame_period_nanos;
+        long wait_nanos;
+        long seen_sequence = SharedData.INSTANCE.sequence();
 
         Tuner.PitchDataForUI pitch_data;
+        /** PitchDataForUI instances are interned, so the same state is the same object. */
+        Tuner.PitchDataForUI shown_data = null;
 
         LEDBitmap led_bitmap = new LEDBitmap();
 
+        StaticLayer static_layer = new StaticLayer();
+        boolean full_redraw = true;
+        /** The area to redraw; lockCanvas() may enlarge it. */
+        Rect dirty_rect = new Rect();
+
         Tuner.INSTANCE.switchON();
 
         while(!stopRequested)
@@ -114,77 +152,229 @@ public class DisplaySurfaceView extends SurfaceView
 
             try
             {
-                start_time = System.currentTimeMillis();
+                /** Sleep until the tuner publishes a new result. */
+                if(!redrawRequested)
+                {
+                    SharedData.INSTANCE.awaitPublish(seen_sequence, IDLE_WAIT_NANOS);
+                }
+                seen_sequence = SharedData.INSTANCE.sequence();
+
+                /** Only a surface size or tuning change allocates (the new static layer). */
+                Tuning tuning = Tuner.INSTANCE.getTuning();
+                if(layoutChanged || tuning != static_layer.tuning)
+                {
+                    layoutChanged = false;
+                    static_layer.build(mScreenWidth, mScreenHeight, tuning,
+                            paint_bg, paint_txt_pitch, paint_txt_accidental, paint_bmp_led_off, led_bitmap);
+                    full_redraw = true;
+                }
+                if(!static_layer.isBuilt())
+                {
+                    /** surfaceChanged() has not been called yet. */
+                    redrawRequested = false;
+                    continue;
+                }
 
                 pitch_data = Tuner.INSTANCE.getPitchDateForUI();
 
-                canvas = mSurfaceHolder.lockCanvas();
+                if(pitch_data == shown_data && !redrawRequested && !full_redraw)
+                {
+                    continue;
+                }
 
+                /** Pace to the display: wait out the rest of the refresh period, then take the newest reading. */
+                wait_nanos = last_draw_nanos + frame_period_nanos - System.nanoTime();
+                if(wait_nanos > 0)
                 {
-                    /** Draw Background. */
-                    canvas.drawRect(
-                            0, 0,
-                            mScreenWidth, mScreenHeight,
-                            paint_bg);
+                    LockSupport.parkNanos(wait_nanos);
+                    pitch_data = Tuner.INSTANCE.getPitchDateForUI();
                 }
 
+                redrawRequested = false;
+
+                if(full_redraw)
                 {
-                    /** Draw text. */
-                    canvas.drawText(
-                            Tuner.GuitarPitch.OFF.toString(),
-                            pos_txt_pitch_x, pos_txt_pitch_y,
-                            paint_txt_pitch);
+                    dirty_rect.set(0, 0, mScreenWidth, mScreenHeight);
+                }
+                else
+                {
+                    dirty_rect.set(static_layer.dirtyArea);
+                }
+
+                long frame_start = Instrumentation.start();
+                canvas = mSurfaceHolder.lockCanvas(dirty_rect);
+                if(canvas == null)
+                {
+                    /** The surface is not ready yet; try again after one refresh period. */
+                    redrawRequested = true;
+                    LockSupport.parkNanos(frame_period_nanos);
+                    continue;
+                }
+
+                {
+                    /** Restore background, dim digits, accidentals and unlit LEDs. */
+                    canvas.drawBitmap(static_layer.bitmap, dirty_rect, dirty_rect, null);
+                }
 
-                    if(pitch_data.pitch != Tuner.GuitarPitch.OFF)
+                {
+                    /** Draw text. */
+                    if(pitch_data.diff != Tuner.Difference.OFF)
                     {
                         paint_txt_pitch.setColor(Color.rgb(238, 0, 0));
                         canvas.drawText(
-                                pitch_data.pitch.toString(),
-                                pos_txt_pitch_x, pos_txt_pitch_y,
+                                pitch_data.text,
+                                static_layer.posTxtPitchX, static_layer.posTxtPitchY,
                                 paint_txt_pitch);
                         paint_txt_pitch.setColor(Color.rgb(64, 0, 0));
                     }
-
-                    canvas.drawText(
-                            "♭",
-                            pos_flat_x, pos_accidental_shared_y,
-                            paint_txt_accidental);
-                    canvas.drawText(
-                            "♯",
-                            pos_sharp_x, pos_accidental_shared_y,
-                            paint_txt_accidental);
                 }
 
                 {
 
                     /** Draw LED. */
                     canvas.drawBitmap(led_bitmap.getLEDBitmap(pitch_data.diff, LEDPosition.CENTER),
-                        pos_led_center_x, pos_led_shared_y,
+                        static_layer.posLedCenterX, static_layer.posLedSharedY,
                             paint_bmp_led_off);
                     canvas.drawBitmap(led_bitmap.getLEDBitmap(pitch_data.diff, LEDPosition.LEFT),
-                        pos_led_left_x, pos_led_shared_y,
+                        static_layer.posLedLeftX, static_layer.posLedSharedY,
                         paint_bmp_led_off);
                     canvas.drawBitmap(led_bitmap.getLEDBitmap(pitch_data.diff, LEDPosition.RIGHT),
-                        pos_led_right_x, pos_led_shared_y,
+                        static_layer.posLedRightX, static_layer.posLedSharedY,
                         paint_bmp_led_off);
                 }
 
 
 
                 mSurfaceHolder.unlockCanvasAndPost(canvas);
+                Instrumentation.stop(Instrumentation.Stage.DISPLAY_FRAME, frame_start);
 
-                wait_time = FRAME_TIME - (System.currentTimeMillis() - start_time);
-
-                if(wait_time > 0)
-                {
-                    Thread.sleep(wait_time);
-                }
+                shown_data = pitch_data;
+                full_redraw = false;
+                last_draw_nanos = System.nanoTime();
             }
             catch (Exception e)
             {
                 e.printStackTrace();
             }
         }
+
+        static_layer.release();
+    }
+
+    /**
+     * The parts of the display that never change with the reading, composited
+     * once per surface size and tuning: background, dim "8" digits, accidentals
+     * and unlit LEDs. Also holds the layout and the area a reading can change.
+     */
+    private class StaticLayer
+    {
+        private Bitmap bitmap;
+
+        /** The digits are sized for the longest label of this tuning, e.g. "6C#". */
+        private Tuning tuning;
+
+        /** Covers the digits and the LEDs, the only things drawn per reading. */
+        private final Rect dirtyArea = new Rect();
+
+        private float posTxtPitchX, posTxtPitchY;
+        private float posLedCenterX, posLedLeftX, posLedRightX, posLedSharedY;
+
+        public boolean isBuilt()
+        {
+            return bitmap != null;
+        }
+
+        public void build(int width, int height, Tuning tuning,
+                          Paint paint_bg, Paint paint_txt_pitch, Paint paint_txt_accidental,
+                          Paint paint_bmp_led_off, LEDBitmap led_bitmap)
+        {
+            release();
+
+            float led_size = dip2px(48f);
+
+            this.tuning = tuning;
+
+            /** One dim "8" per character of the longest label; the widest label sets the width. */
+            int digit_count = 0;
+            float txt_pitch_width = 0;
+            for(int i = 0; i < tuning.stringCount(); i++)
+            {
+                digit_count = Math.max(digit_count, tuning.label(i).length());
+                txt_pitch_width = Math.max(txt_pitch_width, paint_txt_pitch.measureText(tuning.label(i)));
+            }
+            StringBuilder dim_digits = new StringBuilder();
+            for(int i = 0; i < digit_count; i++)
+            {
+                dim_digits.append('8');
+            }
+            txt_pitch_width = Math.max(txt_pitch_width, paint_txt_pitch.measureText(dim_digits.toString()));
+
+            posTxtPitchX = (width / 2.0f)
+                    - (txt_pitch_width / 2.0f);
+            posTxtPitchY = (height / 2.0f)
+                    - ((paint_txt_pitch.ascent() + paint_txt_pitch.descent()) / 2.0f);
+
+            posLedCenterX = (width / 2.0f) - (led_size / 2.0f);
+            posLedLeftX = posLedCenterX - led_size;
+            posLedRightX = posLedCenterX + led_size;
+            posLedSharedY = (height / 2.0f) - dip2px(96.0f);
+
+            float pos_flat_x = (width / 2.0f) -  (led_size + paint_txt_accidental.measureText("♭") / 2.0f);
+            float pos_sharp_x = (width / 2.0f) +  (led_size - paint_txt_accidental.measureText("♯") / 2.0f);
+            float pos_accidental_shared_y = (height / 2.0f) - dip2px(96.0f);
+
+            dirtyArea.set(
+                    (int) Math.floor(posTxtPitchX),
+                    (int) Math.floor(posTxtPitchY + paint_txt_pitch.ascent()),
+                    (int) Math.ceil(posTxtPitchX + txt_pitch_width),
+                    (int) Math.ceil(posTxtPitchY + paint_txt_pitch.descent()));
+            dirtyArea.union(
+                    (int) Math.floor(posLedLeftX),
+                    (int) Math.floor(posLedSharedY),
+                    (int) Math.ceil(posLedRightX + led_size),
+                    (int) Math.ceil(posLedSharedY + led_size));
+
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+
+            canvas.drawRect(
+                    0, 0,
+                    width, height,
+                    paint_bg);
+
+            canvas.drawText(
+                    dim_digits.toString(),
+                    posTxtPitchX, posTxtPitchY,
+                    paint_txt_pitch);
+
+            canvas.drawText(
+                    "♭",
+                    pos_flat_x, pos_accidental_shared_y,
+                    paint_txt_accidental);
+            canvas.drawText(
+                    "♯",
+                    pos_sharp_x, pos_accidental_shared_y,
+                    paint_txt_accidental);
+
+            canvas.drawBitmap(led_bitmap.getLEDBitmap(Tuner.Difference.OFF, LEDPosition.CENTER),
+                    posLedCenterX, posLedSharedY,
+                    paint_bmp_led_off);
+            canvas.drawBitmap(led_bitmap.getLEDBitmap(Tuner.Difference.OFF, LEDPosition.LEFT),
+                    posLedLeftX, posLedSharedY,
+                    paint_bmp_led_off);
+            canvas.drawBitmap(led_bitmap.getLEDBitmap(Tuner.Difference.OFF, LEDPosition.RIGHT),
+                    posLedRightX, posLedSharedY,
+                    paint_bmp_led_off);
+        }
+
+        public void release()
+        {
+            if(bitmap != null)
+            {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
     }
 
     private enum LEDPosition
@@ -309,6 +499,16 @@ public class DisplaySurfaceView extends SurfaceView
         }
     }
 
+    private float getRefreshRate()
+    {
+        WindowManager window_manager =
+                (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+        float refresh_rate = window_manager.getDefaultDisplay().getRefreshRate();
+
+        /** Some devices report 0. */
+        return (refresh_rate > 0) ? refresh_rate : 60.0f;
+    }
+
     private float dip2px(float dip)
     {
         return getResources().getDisplayMetrics().density * dip;
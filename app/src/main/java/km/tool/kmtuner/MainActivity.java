@@ -10,6 +10,7 @@ public class MainActivity extends Activity
     protected void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
+        Tuner.INSTANCE.setSampleRate(MicrophoneSource.nativeSampleRate(this, Tuner.DEFAULT_SAMPLING_RATE));
         setContentView(new DisplaySurfaceView(this));
     }
 
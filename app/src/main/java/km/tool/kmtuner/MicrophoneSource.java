@@ -0,0 +1,178 @@
+package km.tool.kmtuner;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import km.tool.kmtuner.dsp.AudioSource;
+
+/**
+ * The default AudioSource: 16-bit mono PCM from the microphone through AudioRecord.
+ * read() blocks until the requested samples have been recorded.
+ */
+class MicrophoneSource implements AudioSource
+{
+    /** AudioRecord.ERROR_DEAD_OBJECT (API 24): the recorder is gone and has to be recreated. */
+    private static final int ERROR_DEAD_OBJECT = -6;
+
+    /**
+     * Reads in a row that may return nothing (0 or AudioRecord.ERROR) before the
+     * microphone is taken as broken. A blocking read normally returns samples.
+     */
+    private static final int MAX_EMPTY_READS = 16;
+
+    private final int sampleRate;
+    private final AudioRecord audioRecord;
+    private int emptyReads = 0;
+
+    /** hop_size: the number of samples read at a time. */
+    MicrophoneSource(int sample_rate, int hop_size)
+    {
+        sampleRate = sample_rate;
+
+        int buffer_size = AudioRecord.getMinBufferSize(
+                sample_rate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        buffer_size *= 4;
+
+        /** The recorder must be able to hold a few hops while a frame is analyzed. */
+        buffer_size = Math.max(buffer_size, hop_size * 2/*bytes*/ * 4);
+
+        Log.d(AppInfo.NAME.toString(), "sample_rate: " + String.valueOf(sample_rate)
+                + ", buffer_size: " + String.valueOf(buffer_size));
+
+        audioRecord = new AudioRecord(
+                MediaRecorder.AudioSource.MIC,
+                sample_rate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                buffer_size);
+
+        /** E.g. without the RECORD_AUDIO permission, or when another app holds the microphone. */
+        if(audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
+        {
+            audioRecord.release();
+            throw new IllegalStateException("AudioRecord not initialized: sample_rate: " + sample_rate
+                    + ", buffer_size: " + buffer_size);
+        }
+    }
+
+    /**
+     * The output sample rate of the device (API 17+), which is usually also the rate the
+     * microphone runs at natively; capturing at it avoids resampling in the platform.
+     * Returns default_rate on older devices, or when AudioRecord does not support the rate.
+     */
+    static int nativeSampleRate(Context context, int default_rate)
+    {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
+        {
+            return default_rate;
+        }
+
+        AudioManager audio_manager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String property = audio_manager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        if(property == null)
+        {
+            return default_rate;
+        }
+
+        int sample_rate;
+        try
+        {
+            sample_rate = Integer.parseInt(property);
+        }
+        catch(NumberFormatException e)
+        {
+            return default_rate;
+        }
+
+        int min_buffer_size = AudioRecord.getMinBufferSize(
+                sample_rate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        return (sample_rate > 0 && min_buffer_size > 0) ? sample_rate : default_rate;
+    }
+
+    @Override
+    public int sampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public boolean isLive()
+    {
+        return true;
+    }
+
+    @Override
+    public void start()
+    {
+        audioRecord.startRecording();
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length)
+    {
+        return result(audioRecord.read(buffer, offset, length));
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int length)
+    {
+        /**
+         * AudioRecord writes from the start of the buffer, whatever its position; a block
+         * that is filled in several reads needs a slice (rare: reads normally fill the block).
+         */
+        ByteBuffer target = (buffer.position() == 0) ? buffer : buffer.slice();
+        int read_size = audioRecord.read(target, 2/*bytes*/ * length);
+
+        return result((read_size > 0) ? read_size / 2 : read_size);
+    }
+
+    /**
+     * Maps the result of AudioRecord.read() to that of AudioSource.read(). The errors
+     * that a retry cannot fix end the stream. 0 and AudioRecord.ERROR (-1, which would
+     * be taken as END_OF_STREAM) are retried, but only MAX_EMPTY_READS times in a row,
+     * so that a broken microphone does not keep the capture thread spinning.
+     */
+    private int result(int read_size)
+    {
+        if(read_size > 0)
+        {
+            emptyReads = 0;
+            return read_size;
+        }
+
+        if(read_size == AudioRecord.ERROR_INVALID_OPERATION
+                || read_size == AudioRecord.ERROR_BAD_VALUE
+                || read_size == ERROR_DEAD_OBJECT)
+        {
+            Log.e(AppInfo.NAME.toString(), "AudioRecord.read failed: " + String.valueOf(read_size));
+            return END_OF_STREAM;
+        }
+
+        if(++emptyReads >= MAX_EMPTY_READS)
+        {
+            Log.e(AppInfo.NAME.toString(), "AudioRecord.read returned nothing "
+                    + String.valueOf(emptyReads) + " times: " + String.valueOf(read_size));
+            return END_OF_STREAM;
+        }
+        return 0;
+    }
+
+    @Override
+    public void release()
+    {
+        audioRecord.release();
+    }
+}
@@ -1,21 +1,162 @@
 package km.tool.kmtuner;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import km.tool.kmtuner.dsp.StringReading;
+import km.tool.kmtuner.dsp.Tuning;
+
 /**
  * Created by Kenta on 2016/07/20.
+ *
+ * Hands the latest analysis result from the tuner thread to the UI thread.
+ * The result is published as primitives under a sequence lock, so the writer
+ * never waits for the reader and a reader never sees pitch and clarity from
+ * different frames. Only one thread may publish.
+ *
+ * Strum mode results are published the same way under their own sequence.
+ * The per-string values are kept as raw double bits in an AtomicLongArray,
+ * whose elements have the same visibility guarantees as volatile fields.
  */
 enum SharedData
 {
     INSTANCE;
 
-    private PitchData pitchData;
+    /** Odd while the writer is updating the fields below. */
+    private volatile long sequence = 0;
+
+    private volatile double pitch = 0;
+    private volatile double clarity = 0;
+    private volatile long timestampNanos = 0;
+    private volatile long frameId = 0;
+
+    /** The thread parked in awaitPublish(), if any. */
+    private volatile Thread waiter = null;
+
+    /** Odd while the writer is updating the strum results below. */
+    private volatile long strumSequence = 0;
 
-    public PitchData getPitchData()
+    private volatile int strumCount = 0;
+    /** [string * 3] pitch, [string * 3 + 1] cents, [string * 3 + 2] clarity */
+    private final AtomicLongArray strumValues = new AtomicLongArray(Tuning.MAX_STRINGS * 3);
+
+    /** Called from the tuner thread only. */
+    public void publish(double pitch, double clarity, long timestamp_nanos, long frame_id)
     {
-        return pitchData;
+        long seq = sequence;
+
+        sequence = seq + 1;
+
+        this.pitch = pitch;
+        this.clarity = clarity;
+        this.timestampNanos = timestamp_nanos;
+        this.frameId = frame_id;
+
+        sequence = seq + 2;
+
+        Thread thread = waiter;
+        if(thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
     }
 
-    public void setPitchData(PitchData pitchData)
+    /** Changes with every publish(); pass it to awaitPublish(). */
+    public long sequence()
     {
-        this.pitchData = pitchData;
+        return sequence;
     }
+
+    /**
+     * Parks the calling thread until a result newer than the given sequence has been
+     * published, the timeout elapses or the thread is unparked. Only one thread may wait.
+     */
+    public void awaitPublish(long seen_sequence, long timeout_nanos)
+    {
+        waiter = Thread.currentThread();
+
+        /** Checked after registering, so a publish in between is not missed. */
+        if(sequence == seen_sequence)
+        {
+            LockSupport.parkNanos(this, timeout_nanos);
+        }
+
+        waiter = null;
+    }
+
+    /** Copies a consistent snapshot of the latest result into the given holder. */
+    public void read(PitchSnapshot snapshot)
+    {
+        long seq_before;
+        long seq_after;
+
+        do
+        {
+            seq_before = sequence;
+
+            snapshot.pitch = pitch;
+            snapshot.clarity = clarity;
+            snapshot.timestampNanos = timestampNanos;
+            snapshot.frameId = frameId;
+
+            seq_after = sequence;
+        }
+        while((seq_before & 1) != 0 || seq_before != seq_after);
+    }
+
+    /** Called from the tuner thread only. */
+    public void publishStrum(StringReading[] readings, int count)
+    {
+        long seq = strumSequence;
+
+        strumSequence = seq + 1;
+
+        for(int i = 0; i < count; i++)
+        {
+            strumValues.set(i * 3, Double.doubleToRawLongBits(readings[i].getPitch()));
+            strumValues.set(i * 3 + 1, Double.doubleToRawLongBits(readings[i].getCents()));
+            strumValues.set(i * 3 + 2, Double.doubleToRawLongBits(readings[i].getClarity()));
+        }
+        strumCount = count;
+
+        strumSequence = seq + 2;
+    }
+
+    /**
+     * Copies a consistent snapshot of the latest strum result into the given holders.
+     * Returns the number of strings copied (0 before the first strum frame).
+     */
+    public int readStrum(StringReading[] readings)
+    {
+        long seq_before;
+        long seq_after;
+        int count;
+
+        do
+        {
+            seq_before = strumSequence;
+
+            count = Math.min(strumCount, readings.length);
+            for(int i = 0; i < count; i++)
+            {
+                readings[i].setPitch(Double.longBitsToDouble(strumValues.get(i * 3)));
+                readings[i].setCents(Double.longBitsToDouble(strumValues.get(i * 3 + 1)));
+                readings[i].setClarity(Double.longBitsToDouble(strumValues.get(i * 3 + 2)));
+            }
+
+            seq_after = strumSequence;
+        }
+        while((seq_before & 1) != 0 || seq_before != seq_after);
+
+        return count;
+    }
+}
+
+/** A caller-owned copy of the latest analysis result (see SharedData.read()). */
+class PitchSnapshot
+{
+    public double pitch;
+    public double clarity;
+    public long timestampNanos;
+    public long frameId;
 }
@@ -1,10 +1,27 @@
 package km.tool.kmtuner;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
+import android.os.Process;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+import km.tool.kmtuner.dsp.AdaptivePitchDetector;
+import km.tool.kmtuner.dsp.AnalysisScheduler;
+import km.tool.kmtuner.dsp.AudioSource;
+import km.tool.kmtuner.dsp.BlockQueue;
+import km.tool.kmtuner.dsp.Decimator;
+import km.tool.kmtuner.dsp.GuitarPitch;
+import km.tool.kmtuner.dsp.Instrumentation;
+import km.tool.kmtuner.dsp.NoteClassifier;
+import km.tool.kmtuner.dsp.PitchDetector;
+import km.tool.kmtuner.dsp.PitchData;
+import km.tool.kmtuner.dsp.SampleRingBuffer;
+import km.tool.kmtuner.dsp.StringReading;
+import km.tool.kmtuner.dsp.StrumAnalyzer;
+import km.tool.kmtuner.dsp.Tuning;
+
 /**
  * Created by Kenta on 2016/07/20.
  */
@@ -12,13 +29,81 @@ public enum  Tuner implements Runnable
 {
     INSTANCE; /** This is the sole object of this class */
 
-    private static final int SAMPLING_RATE = 44100;
+    /** The microphone rate until setSampleRate() is called. */
+    public static final int DEFAULT_SAMPLING_RATE = 44100;
+
+    /**
+     * Window sizes at DEFAULT_SAMPLING_RATE. At other rates the nearest power of two that
+     * covers about the same time is used (see scaledWindowSize()), e.g. 4096 at 48 kHz.
+     */
     public static final int WINDOW_SIZE = 4096;
+    /** Smallest window used for the treble strings when the window size is adaptive. */
+    public static final int MIN_WINDOW_SIZE = 1024;
+
+    /** Strum mode separates the strings in the spectrum, which needs a finer resolution (2.7 Hz at 44.1 kHz). */
+    public static final int STRUM_WINDOW_SIZE = 16384;
 
     public static final double CLARITY_THRESHOLD = 0.75;
 
+    /** Deviation from the nearest string, in cents, shown as ON_KEY / LITTLE_* / HIGH, LOW. */
+    public static final double NARROW_RANGE_CENTS = 5.0;
+    public static final double MID_RANGE_CENTS = 20.0;
+    public static final double WIDE_RANGE_CENTS = 300.0;
+
+    /** Number of new samples read between two analyses (512 samples = 11.6 ms at 44.1 kHz). */
+    public static final int DEFAULT_HOP_SIZE = 512;
+
+    /** Length of audio the capture thread can queue ahead of the analysis. */
+    private static final int QUEUE_MILLIS = 500;
+
+    /** How long the analysis waits for a block before checking stopRequested again. */
+    private static final long BLOCK_WAIT_NANOS = 100 * 1000 * 1000L;
+
+    /** How long the capture of a non-live source waits for a free block. */
+    private static final long FULL_WAIT_NANOS = 100 * 1000L;
+
+    /** How often the analysis thread logs the instrumentation while it is enabled. */
+    private static final long DUMP_INTERVAL_NANOS = 5 * 1000 * 1000 * 1000L;
+
     private volatile boolean stopRequested = false;
 
+    private volatile int sampleRate = DEFAULT_SAMPLING_RATE;
+
+    private volatile int hopSize = DEFAULT_HOP_SIZE;
+
+    private volatile PitchDetector.Precision precision = PitchDetector.Precision.DOUBLE;
+
+    private volatile boolean adaptiveWindow = false;
+
+    private volatile int decimationFactor = 1;
+
+    private volatile boolean strumMode = false;
+
+    /** null: the microphone. */
+    private volatile AudioSource audioSource = null;
+
+    private volatile boolean skipStaleBlocks = true;
+
+    private volatile boolean analysisScheduling = true;
+
+    private volatile boolean pitchTracking = true;
+
+    private volatile boolean directCapture = true;
+
+    /** The queue between the capture and analysis threads of the current run. */
+    private volatile BlockQueue blockQueue = null;
+
+    /** Replaced as a whole when the tuning or the reference pitch changes. */
+    private volatile NoteTable noteTable =
+            new NoteTable(new NoteClassifier(NoteClassifier.DEFAULT_REFERENCE_HZ, Tuning.STANDARD));
+
+    /** Filled by the periodic instrumentation dump; used by the analysis thread only. */
+    private final Instrumentation.Snapshot dumpSnapshot = new Instrumentation.Snapshot();
+
+    /** Read buffers for getPitchDateForUI(); used by the UI thread only. */
+    private final PitchSnapshot uiSnapshot = new PitchSnapshot();
+    private final NoteClassifier.Result uiNote = new NoteClassifier.Result();
+
     public enum Difference
     {
         OFF,
@@ -29,207 +114,794 @@ public enum  Tuner implements Runnable
         LOW
     }
 
-    public enum GuitarPitch
+    /**
+     * Immutable; one shared instance exists for every Difference x string combination
+     * of the current tuning, so handing a result to the render loop never allocates.
+     */
+    public static final class PitchDataForUI
     {
-        OFF("88", 0),
-        SIXTH("6E", 82.4),
-        FIFTH("5A", 110.0),
-        FOURTH("4D", 146.0),
-        THIRD("3G", 196.0),
-        SECOND("2B", 246.9),
-        FIRST("1E", 329.6);
-
-        private final String text;
-        private final double hz;
+        public static final PitchDataForUI OFF =
+                new PitchDataForUI(Difference.OFF, GuitarPitch.OFF.toString());
 
-        private static final double WIDE_RANGE_HZ = 10.0;
-        private static final double MID_RANGE_HZ = 2.0;
-        private static final double NARROW_RANGE_HZ = 1.0;
+        public final Difference diff;
+        /** The string to show, e.g. "6E"; "88" when nothing is detected. */
+        public final String text;
 
-        private GuitarPitch(final String text, final double hz)
+        private PitchDataForUI(Difference diff, String text)
         {
+            this.diff = diff;
             this.text = text;
-            this.hz = hz;
         }
+    }
 
-        @Override
-        public String toString()
-        {
-            return text;
-        }
+    /** A classifier together with the PitchDataForUI instances for its tuning. */
+    private static final class NoteTable
+    {
+        final NoteClassifier classifier;
+        final PitchDataForUI[][] pitchData; /** [Difference][string] */
 
-        public double hz()
+        NoteTable(NoteClassifier classifier)
         {
-            return hz;
-        }
+            Tuning tuning = classifier.tuning();
 
-        public double hzHigh()
-        {
-            return (hz + WIDE_RANGE_HZ);
+            this.classifier = classifier;
+            pitchData = new PitchDataForUI[Difference.values().length][tuning.stringCount()];
+            for(Difference diff : Difference.values())
+            {
+                for(int i = 0; i < tuning.stringCount(); i++)
+                {
+                    pitchData[diff.ordinal()][i] = (diff == Difference.OFF)
+                            ? PitchDataForUI.OFF
+                            : new PitchDataForUI(diff, tuning.label(i));
+                }
+            }
         }
+    }
 
-        public double hzMidHigh()
-        {
-            return (hz + MID_RANGE_HZ);
-        }
+    public void switchON()
+    {
+        new Thread(INSTANCE).start();
+    }
 
-        public double hzNarrowHigh()
-        {
-            return (hz + NARROW_RANGE_HZ);
-        }
+    public void switchOFF()
+    {
+        stopRequested = true;
+    }
 
-        public double hzLow()
+    /**
+     * The rate the microphone is opened at; preferably its native rate, so the platform
+     * does not have to resample. Other sources have their own rate. The window sizes and
+     * the searched lags follow the rate. Takes effect the next time the tuner is switched on.
+     */
+    public void setSampleRate(int sample_rate)
+    {
+        if(sample_rate <= 0)
         {
-            return (hz - WIDE_RANGE_HZ);
+            throw new IllegalArgumentException("sample_rate: " + sample_rate);
         }
 
-        public double hzMidLow()
-        {
-            return (hz - MID_RANGE_HZ);
-        }
+        sampleRate = sample_rate;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
 
-        public double hzNarrowLow()
+    /** Takes effect the next time the tuner is switched on. */
+    public void setHopSize(int hop_size)
+    {
+        if(hop_size <= 0 || hop_size > WINDOW_SIZE / 2)
         {
-            return (hz - NARROW_RANGE_HZ);
+            throw new IllegalArgumentException("hop_size: " + hop_size);
         }
+
+        hopSize = hop_size;
     }
 
-    public class PitchDataForUI
+    public int getHopSize()
     {
-        public Difference diff = Difference.OFF;
-        public GuitarPitch pitch = GuitarPitch.OFF;
+        return hopSize;
+    }
 
-        public PitchDataForUI(Difference diff, GuitarPitch pitch)
+    /** Takes effect the next time the tuner is switched on. */
+    public void setPrecision(PitchDetector.Precision precision)
+    {
+        this.precision = precision;
+    }
+
+    public PitchDetector.Precision getPrecision()
+    {
+        return precision;
+    }
+
+    /**
+     * When enabled, the window shrinks to a few periods of the last detected pitch
+     * (between MIN_WINDOW_SIZE and WINDOW_SIZE). This saves 30 to 45% of the analysis time
+     * but costs accuracy (see the adaptive configurations of the accuracy suite), so it is
+     * off by default. Takes effect the next time the tuner is switched on.
+     */
+    public void setAdaptiveWindow(boolean adaptive_window)
+    {
+        adaptiveWindow = adaptive_window;
+    }
+
+    public boolean isAdaptiveWindow()
+    {
+        return adaptiveWindow;
+    }
+
+    /**
+     * Low-pass filters and decimates the captured audio by the given factor before analysis
+     * (1 = off, 4 = 11025 Hz from 44.1 kHz). The windows shrink by the same factor, so each frame still
+     * covers the same time span. Takes effect the next time the tuner is switched on.
+     */
+    public void setDecimationFactor(int decimation_factor)
+    {
+        if(decimation_factor < 1 || MIN_WINDOW_SIZE % decimation_factor != 0)
         {
-            this.diff = diff;
-            this.pitch = pitch;
+            throw new IllegalArgumentException("decimation_factor: " + decimation_factor);
         }
+
+        decimationFactor = decimation_factor;
     }
 
-    public void switchON()
+    public int getDecimationFactor()
     {
-        new Thread(INSTANCE).start();
+        return decimationFactor;
     }
 
-    public void switchOFF()
+    /**
+     * When enabled, all strings of the current tuning are analyzed at once from one
+     * strummed frame; read the results with getStrumReadings(). getPitchDateForUI()
+     * reports OFF meanwhile. Takes effect the next time the tuner is switched on.
+     */
+    public void setStrumMode(boolean strum_mode)
     {
-        stopRequested = true;
+        strumMode = strum_mode;
     }
 
-    @Override /** The implementation of Runnable. */
-    public void run()
+    public boolean isStrumMode()
     {
-        int buffer_size = AudioRecord.getMinBufferSize(
-                SAMPLING_RATE,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT);
+        return strumMode;
+    }
 
-        buffer_size *= 4;
+    /**
+     * Replaces the microphone with another input, e.g. a SyntheticSource or a
+     * PcmReplaySource (null restores the microphone). Sources that are not live
+     * are analyzed as fast as they can be read, and the tuner stops by itself at
+     * their end. A source is used for one run only. Takes effect the next time
+     * the tuner is switched on.
+     */
+    public void setAudioSource(AudioSource audio_source)
+    {
+        audioSource = audio_source;
+    }
 
-        Log.d(AppInfo.NAME.toString(), "buffer_size: " + String.valueOf(buffer_size * 4));
+    public AudioSource getAudioSource()
+    {
+        return audioSource;
+    }
 
-        AudioRecord audio_record = new AudioRecord(
-                MediaRecorder.AudioSource.MIC,
-                SAMPLING_RATE,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                SAMPLING_RATE * 2);
+    /**
+     * When enabled, the analysis of a live source only looks at the newest window
+     * after falling behind the capture, and blocks that no longer reach into it are dropped
+     * unread. When disabled, every hop is analyzed and a slow analysis lets the
+     * queue fill up until the capture has to drop audio. Takes effect immediately.
+     */
+    public void setSkipStaleBlocks(boolean skip_stale_blocks)
+    {
+        skipStaleBlocks = skip_stale_blocks;
+    }
 
-        short [] record_buffer =  new short[SAMPLING_RATE];
+    public boolean isSkipStaleBlocks()
+    {
+        return skipStaleBlocks;
+    }
 
-        PitchAnalyzer pitch_analyzer = new PitchAnalyzer(WINDOW_SIZE);
-        PitchData pitch_data = new PitchData();
+    /**
+     * When enabled, silent frames are not analyzed and a steady note is analyzed
+     * less often (down to every 8th hop) until the next pluck. Takes effect the
+     * next time the tuner is switched on.
+     */
+    public void setAnalysisScheduling(boolean analysis_scheduling)
+    {
+        analysisScheduling = analysis_scheduling;
+    }
 
-        audio_record.startRecording();
+    public boolean isAnalysisScheduling()
+    {
+        return analysisScheduling;
+    }
 
-        while(!stopRequested)
-        {
-            audio_record.read(
-                    record_buffer,
-                    0/*offset*/,
-                    record_buffer.length);
+    /**
+     * When enabled, each frame searches only about a semitone around the previous
+     * pitch and falls back to a full search when the note is lost or jumps an
+     * octave. Takes effect the next time the tuner is switched on.
+     */
+    public void setPitchTracking(boolean pitch_tracking)
+    {
+        pitchTracking = pitch_tracking;
+    }
 
-            pitch_analyzer.getExactPitch_hz(record_buffer, pitch_data);
+    public boolean isPitchTracking()
+    {
+        return pitchTracking;
+    }
+
+    /**
+     * When enabled, the capture thread records straight into a direct ByteBuffer that
+     * serves as the analysis ring buffer, and the analysis converts the samples from it;
+     * no Java array holds the audio on the way. Needs a power-of-two hop size and no
+     * decimation; otherwise the samples go through arrays as before. Takes effect the
+     * next time the tuner is switched on.
+     */
+    public void setDirectCapture(boolean direct_capture)
+    {
+        directCapture = direct_capture;
+    }
+
+    public boolean isDirectCapture()
+    {
+        return directCapture;
+    }
+
+    /**
+     * Times every stage of the pipeline into latency histograms and counts dropped
+     * and skipped frames. Enabling it clears the previous results. While enabled,
+     * the analysis thread logs a snapshot every 5 seconds. Takes effect immediately.
+     */
+    public void setInstrumentation(boolean instrumentation)
+    {
+        Instrumentation.setEnabled(instrumentation);
+    }
+
+    public boolean isInstrumentation()
+    {
+        return Instrumentation.isEnabled();
+    }
+
+    /** Copies the current instrumentation results into dst. Does not allocate. */
+    public void getInstrumentation(Instrumentation.Snapshot dst)
+    {
+        Instrumentation.snapshot(dst);
+    }
+
+    /** Blocks of audio the capture thread dropped because the queue was full (current run). */
+    public long getOverrunCount()
+    {
+        BlockQueue block_queue = blockQueue;
+        return (block_queue == null) ? 0 : block_queue.overruns();
+    }
 
-            synchronized (SharedData.INSTANCE)
+    /** Times the analysis found no new audio and had to wait for the capture (current run). */
+    public long getUnderrunCount()
+    {
+        BlockQueue block_queue = blockQueue;
+        return (block_queue == null) ? 0 : block_queue.underruns();
+    }
+
+    /** Blocks of audio the analysis skipped to catch up (current run). */
+    public long getSkippedBlockCount()
+    {
+        BlockQueue block_queue = blockQueue;
+        return (block_queue == null) ? 0 : block_queue.skipped();
+    }
+
+    /** Takes effect immediately. */
+    public synchronized void setTuning(Tuning tuning)
+    {
+        noteTable = new NoteTable(new NoteClassifier(noteTable.classifier.referenceHz(), tuning));
+    }
+
+    public Tuning getTuning()
+    {
+        return noteTable.classifier.tuning();
+    }
+
+    /** Sets the frequency of A4 (440 Hz by default). Takes effect immediately. */
+    public synchronized void setReferencePitch(double reference_hz)
+    {
+        noteTable = new NoteTable(new NoteClassifier(reference_hz, noteTable.classifier.tuning()));
+    }
+
+    public double getReferencePitch()
+    {
+        return noteTable.classifier.referenceHz();
+    }
+
+    @Override /** The implementation of Runnable. */
+    public void run()
+    {
+        int hop_size = hopSize;
+        int decimation_factor = decimationFactor;
+
+        AudioSource audio_source = audioSource;
+        if(audio_source == null)
+        {
+            try
+            {
+                audio_source = new MicrophoneSource(sampleRate, hop_size);
+            }
+            catch(IllegalStateException e)
             {
-                SharedData.INSTANCE.setPitchData(pitch_data);
+                Log.e(AppInfo.NAME.toString(), "cannot open the microphone", e);
+                return;
             }
         }
 
-        audio_record.release();
-    }
+        int capture_rate = audio_source.sampleRate();
+        int analysis_rate = capture_rate / decimation_factor;
 
-    /** memory leak! */
-    public PitchDataForUI getPitchDateForUI()
-    {
-        double pitch;
-        double clarity;
+        int window_size = scaledWindowSize(WINDOW_SIZE, capture_rate) / decimation_factor;
+        int min_window_size = scaledWindowSize(MIN_WINDOW_SIZE, capture_rate) / decimation_factor;
+        int strum_window_size = scaledWindowSize(STRUM_WINDOW_SIZE, capture_rate) / decimation_factor;
+
+        /** Decimated samples are written here before they go into the ring buffer. */
+        Decimator decimator = null;
+        short [] decimated_buffer = null;
+        if(decimation_factor > 1)
+        {
+            decimator = new Decimator(decimation_factor);
+            decimated_buffer = new short[decimator.maxOutputLength(hop_size)];
+        }
+
+        PitchDetector pitch_analyzer = null;
+        StrumAnalyzer strum_analyzer = null;
+        int input_length;
+
+        if(strumMode)
+        {
+            NoteClassifier classifier = noteTable.classifier;
+            Tuning tuning = classifier.tuning();
+            double[] target_hz = new double[tuning.stringCount()];
+            for(int i = 0; i < target_hz.length; i++)
+            {
+                target_hz[i] = classifier.noteHz(tuning.note(i));
+            }
+
+            strum_analyzer = new StrumAnalyzer(strum_window_size, analysis_rate, target_hz);
+            input_length = strum_analyzer.inputLength();
 
-        synchronized (SharedData.INSTANCE)
+            /** Clear the single-pitch result so the display shows OFF. */
+            SharedData.INSTANCE.publish(0, 0, System.nanoTime(), 0);
+        }
+        else if(adaptiveWindow)
+        {
+            pitch_analyzer = new AdaptivePitchDetector(
+                    min_window_size, window_size,
+                    analysis_rate, CLARITY_THRESHOLD, precision);
+            input_length = pitch_analyzer.inputLength();
+        }
+        else
+        {
+            pitch_analyzer = precision.newDetector(window_size, analysis_rate);
+            input_length = pitch_analyzer.inputLength();
+        }
+        if(pitch_analyzer != null)
+        {
+            pitch_analyzer.setTracking(pitchTracking, CLARITY_THRESHOLD);
+        }
+        PitchData pitch_data = new PitchData();
+
+        StringReading[] strum_readings = new StringReading[Tuning.MAX_STRINGS];
+        for(int i = 0; i < strum_readings.length; i++)
         {
-            pitch = SharedData.INSTANCE.getPitchData().getPitch();
-            clarity = SharedData.INSTANCE.getPitchData().getClarity();
+            strum_readings[i] = new StringReading();
         }
 
-        if(clarity < CLARITY_THRESHOLD)
+        /** Blocks that cover the newest analysis window; anything older is stale. */
+        int window_blocks = (input_length * decimation_factor + hop_size - 1) / hop_size;
+
+        int queue_blocks = Math.max(2 * window_blocks,
+                (int) ((long) capture_rate * QUEUE_MILLIS / 1000 / hop_size));
+
+        /** Direct blocks must tile the ring, and decimated samples cannot be recorded in place. */
+        boolean direct_capture = directCapture && decimator == null && Integer.bitCount(hop_size) == 1;
+
+        /** The capture thread reads one hop per block; the analysis window slides over the ring. */
+        SampleRingBuffer ring_buffer;
+        final BlockQueue block_queue;
+        if(direct_capture)
         {
-            return new PitchDataForUI(Difference.OFF, GuitarPitch.OFF);
+            /** The blocks are slices of the ring itself; the queue only passes their lengths. */
+            ring_buffer = SampleRingBuffer.allocateDirect(input_length + hop_size, hop_size, queue_blocks);
+            block_queue = new BlockQueue(ring_buffer.directBlocks(), queue_blocks);
         }
         else
         {
-            for(GuitarPitch it : GuitarPitch.values())
+            ring_buffer = new SampleRingBuffer(input_length + hop_size);
+            block_queue = new BlockQueue(queue_blocks, hop_size);
+        }
+        blockQueue = block_queue;
+
+        /** A source that is not live has no "current" audio to fall behind, so nothing is skipped. */
+        boolean live = audio_source.isLive();
+
+        final AudioSource capture_source = audio_source;
+        Thread capture_thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                capture(capture_source, block_queue);
+            }
+        }, "TunerCapture");
+        capture_thread.start();
+
+        AnalysisScheduler scheduler = analysisScheduling ? new AnalysisScheduler(CLARITY_THRESHOLD) : null;
+        AnalysisScheduler.Decision decision;
+        boolean silence_published = false;
+
+        int read_size;
+        long frame_id = 0;
+
+        /** The note table the search range was last derived from. */
+        NoteTable range_table = null;
+
+        long next_dump_nanos = System.nanoTime() + DUMP_INTERVAL_NANOS;
+
+        while(!stopRequested)
+        {
+            boolean skip_stale = live && skipStaleBlocks;
+
+            if(skip_stale)
+            {
+                int stale;
+                if(direct_capture)
+                {
+                    /** The skipped blocks are still part of the ring; account for their samples first. */
+                    stale = block_queue.staleBlocks(window_blocks);
+                    ring_buffer.commit(stale * hop_size);
+                    block_queue.skip(stale);
+                }
+                else
+                {
+                    stale = block_queue.skipStale(window_blocks);
+                }
+                Instrumentation.count(Instrumentation.Counter.STALE_BLOCKS, stale);
+            }
+
+            if(Instrumentation.isEnabled() && System.nanoTime() >= next_dump_nanos)
             {
-                /** Skip the "GuitarPitch.OFF". */
-                if(it.equals(GuitarPitch.OFF))
+                Instrumentation.snapshot(dumpSnapshot);
+                Log.d(AppInfo.NAME.toString(), "instrumentation:\n" + dumpSnapshot);
+                next_dump_nanos = System.nanoTime() + DUMP_INTERVAL_NANOS;
+            }
+
+            if(direct_capture)
+            {
+                if(!block_queue.awaitBlock(BLOCK_WAIT_NANOS))
+                {
+                    if(block_queue.isClosed())
+                    {
+                        break;
+                    }
                     continue;
+                }
 
-                if(pitch >= it.hz())
+                /** The samples are already in the ring. */
+                ring_buffer.commit(block_queue.readLength());
+                block_queue.release();
+            }
+            else
+            {
+                short [] block = block_queue.readBlock(BLOCK_WAIT_NANOS);
+                if(block == null)
+                {
+                    if(block_queue.isClosed())
+                    {
+                        break;
+                    }
+                    continue;
+                }
+                read_size = block_queue.readLength();
+
+                if(decimator != null)
                 {
-                    if(pitch <= it.hzNarrowHigh())
-                        return new PitchDataForUI(Difference.ON_KEY, it);
-                    if(pitch <= it.hzMidHigh())
-                        return new PitchDataForUI(Difference.LITTLE_HIGH, it);
-                    if(pitch <= it.hzHigh())
-                        return new PitchDataForUI(Difference.HIGH, it);
+                    read_size = decimator.process(block, 0, read_size, decimated_buffer);
+                    ring_buffer.write(decimated_buffer, 0, read_size);
                 }
                 else
                 {
-                    if(pitch >= it.hzNarrowLow())
-                        return new PitchDataForUI(Difference.ON_KEY, it);
-                    if(pitch <= it.hzMidLow())
-                        return new PitchDataForUI(Difference.LITTLE_LOW, it);
-                    if(pitch <= it.hzLow())
-                        return new PitchDataForUI(Difference.LOW, it);
+                    ring_buffer.write(block, 0, read_size);
                 }
+
+                block_queue.release();
+            }
+
+            /** Only analyze the newest window when more audio is already waiting. */
+            if(skip_stale && block_queue.available() > 0)
+            {
+                Instrumentation.count(Instrumentation.Counter.SKIPPED_BEHIND);
+                continue;
             }
 
-            return new PitchDataForUI(Difference.OFF, GuitarPitch.OFF);
+            /** Wait until the first window has been filled. */
+            if(ring_buffer.available() < input_length)
+            {
+                continue;
+            }
+
+            if(scheduler != null)
+            {
+                decision = scheduler.next(ring_buffer);
+
+                if(decision == AnalysisScheduler.Decision.SKIP_SILENT)
+                {
+                    Instrumentation.count(Instrumentation.Counter.SKIPPED_SILENT);
+
+                    /** Report the silence once, so the display turns off and then stays idle. */
+                    if(!silence_published)
+                    {
+                        SharedData.INSTANCE.publish(0, 0, System.nanoTime(), ++frame_id);
+                        silence_published = true;
+                    }
+                    continue;
+                }
+                if(decision == AnalysisScheduler.Decision.SKIP_STABLE)
+                {
+                    Instrumentation.count(Instrumentation.Counter.SKIPPED_STABLE);
+
+                    /** The last published result still holds. */
+                    continue;
+                }
+                silence_published = false;
+            }
+
+            if(strum_analyzer != null)
+            {
+                strum_analyzer.analyze(ring_buffer, strum_readings);
+                Instrumentation.count(Instrumentation.Counter.ANALYSES);
+
+                long publish_start = Instrumentation.start();
+                SharedData.INSTANCE.publishStrum(strum_readings, strum_analyzer.targetCount());
+                Instrumentation.stop(Instrumentation.Stage.PUBLISH, publish_start);
+                continue;
+            }
+
+            NoteTable note_table = noteTable;
+            if(note_table != range_table)
+            {
+                setPitchRange(pitch_analyzer, note_table.classifier);
+                range_table = note_table;
+            }
+
+            pitch_analyzer.getExactPitch_hz(ring_buffer, pitch_data);
+            Instrumentation.count(Instrumentation.Counter.ANALYSES);
+
+            if(scheduler != null)
+            {
+                scheduler.update(pitch_data);
+            }
+
+            long publish_start = Instrumentation.start();
+            SharedData.INSTANCE.publish(
+                    pitch_data.getPitch(),
+                    pitch_data.getClarity(),
+                    System.nanoTime(),
+                    ++frame_id);
+            Instrumentation.stop(Instrumentation.Stage.PUBLISH, publish_start);
+        }
+
+        /** The capture thread sees stopRequested too; it releases the source. */
+        try
+        {
+            capture_thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Limits the period search to pitches the display can show. Below the lowest
+     * string that is WIDE_RANGE_CENTS, since lower notes show as OFF anyway. Above
+     * the highest string it leaves two octaves (the 24th fret), so a harmonic or a
+     * high note is not read as the string an octave below it.
+     */
+    private static void setPitchRange(PitchDetector pitch_analyzer, NoteClassifier classifier)
+    {
+        Tuning tuning = classifier.tuning();
+        double lowest_hz = classifier.noteHz(tuning.note(0));
+        double highest_hz = classifier.noteHz(tuning.note(tuning.stringCount() - 1));
+
+        pitch_analyzer.setPitchRange(lowest_hz * Math.pow(2.0, -WIDE_RANGE_CENTS / 1200.0), highest_hz * 4);
+    }
+
+    /**
+     * The power of two closest (on a log scale) to window_size * sample_rate / DEFAULT_SAMPLING_RATE,
+     * so a window covers about the same time at any rate. The FFT needs a power of two.
+     */
+    static int scaledWindowSize(int window_size, int sample_rate)
+    {
+        double scaled = (double) window_size * sample_rate / DEFAULT_SAMPLING_RATE;
+        int exponent = (int) Math.round(Math.log(scaled) / Math.log(2.0));
+
+        return 1 << Math.max(exponent, 0);
+    }
+
+    /**
+     * The capture stage, on its own thread at audio priority: reads the source
+     * one block at a time into the queue and never waits for the analysis. When
+     * the queue is full the block is read anyway, so the recorder does not
+     * overflow, and dropped. A non-live source waits for space instead.
+     */
+    private void capture(AudioSource audio_source, BlockQueue block_queue)
+    {
+        if(audio_source.isLive())
+        {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
         }
 
+        audio_source.start();
 
+        try
+        {
+            if(block_queue.isDirect())
+            {
+                captureDirect(audio_source, block_queue);
+            }
+            else
+            {
+                captureArrays(audio_source, block_queue);
+            }
+        }
+        finally
+        {
+            block_queue.close();
+            audio_source.release();
+        }
     }
 
-    private void genSine(double hz, short[] output)
+    /** Reads into the short[] blocks of the queue. */
+    private void captureArrays(AudioSource audio_source, BlockQueue block_queue)
     {
-        double amplitude = 0.1 * (double) Short.MAX_VALUE;
+        short [] overrun_block = new short[block_queue.blockSize()];
+        int read_size;
+
+        while(!stopRequested)
+        {
+            short [] block = block_queue.writeBlock();
+            if(block == null)
+            {
+                if(!audio_source.isLive())
+                {
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+                    continue;
+                }
+                block = overrun_block;
+            }
 
-        double[] tmp = new double[output.length];
+            long wait_start = Instrumentation.start();
+            read_size = audio_source.read(
+                    block,
+                    0/*offset*/,
+                    block.length);
+            Instrumentation.stop(Instrumentation.Stage.CAPTURE_WAIT, wait_start);
+
+            if(read_size == AudioSource.END_OF_STREAM)
+            {
+                break;
+            }
+
+            if(read_size <= 0)
+            {
+                continue;
+            }
 
-        for(int i = 0; i < output.length; i++)
+            if(block == overrun_block)
+            {
+                block_queue.overrun();
+                Instrumentation.count(Instrumentation.Counter.DROPPED_BLOCKS);
+            }
+            else
+            {
+                block_queue.publish(read_size);
+            }
+        }
+    }
+
+    /**
+     * Reads straight into the direct blocks of the ring buffer. Each block is filled
+     * completely before it is published, because the next block continues it in the
+     * ring; only the last block, at the end of the source, may be shorter.
+     */
+    private void captureDirect(AudioSource audio_source, BlockQueue block_queue)
+    {
+        int block_size = block_queue.blockSize();
+        ByteBuffer overrun_block = ByteBuffer.allocateDirect(2/*bytes*/ * block_size).order(ByteOrder.nativeOrder());
+        boolean end_of_stream = false;
+
+        while(!stopRequested && !end_of_stream)
         {
-            tmp[i] = amplitude * Math.sin(2 * Math.PI * hz * ((double)i / 44100));
-            output[i] = (short) tmp[i];
+            ByteBuffer block = block_queue.writeDirectBlock();
+            if(block == null)
+            {
+                if(!audio_source.isLive())
+                {
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+                    continue;
+                }
+                block = overrun_block;
+            }
+
+            int filled = 0;
+            while(filled < block_size && !stopRequested)
+            {
+                block.position(2/*bytes*/ * filled);
+                long wait_start = Instrumentation.start();
+                int read_size = audio_source.read(block, block_size - filled);
+                Instrumentation.stop(Instrumentation.Stage.CAPTURE_WAIT, wait_start);
+
+                if(read_size == AudioSource.END_OF_STREAM)
+                {
+                    end_of_stream = true;
+                    break;
+                }
+                if(read_size > 0)
+                {
+                    filled += read_size;
+                }
+            }
+            block.position(0);
+
+            if(filled == 0)
+            {
+                continue;
+            }
+
+            if(block == overrun_block)
+            {
+                block_queue.overrun();
+                Instrumentation.count(Instrumentation.Counter.DROPPED_BLOCKS);
+            }
+            else
+            {
+                block_queue.publish(filled);
+            }
         }
     }
 
-    private void genSine(double hz, double[] output)
+    public PitchDataForUI getPitchDateForUI()
     {
-        double amplitude = 0.1;
+        double pitch;
+        double clarity;
 
-        for(int i = 0; i < output.length; i++)
+        SharedData.INSTANCE.read(uiSnapshot);
+        pitch = uiSnapshot.pitch;
+        clarity = uiSnapshot.clarity;
+
+        NoteTable note_table = noteTable;
+
+        if(clarity < CLARITY_THRESHOLD || !note_table.classifier.classify(pitch, uiNote))
         {
-            output[i] = amplitude * Math.sin(2.0 * Math.PI * hz * ((double)i / 44100.0));
+            return PitchDataForUI.OFF;
         }
+
+        double cents = uiNote.stringCents;
+        double abs_cents = Math.abs(cents);
+        Difference diff;
+
+        if(abs_cents <= NARROW_RANGE_CENTS)
+            diff = Difference.ON_KEY;
+        else if(abs_cents <= MID_RANGE_CENTS)
+            diff = (cents > 0) ? Difference.LITTLE_HIGH : Difference.LITTLE_LOW;
+        else if(abs_cents <= WIDE_RANGE_CENTS)
+            diff = (cents > 0) ? Difference.HIGH : Difference.LOW;
+        else
+            return PitchDataForUI.OFF;
+
+        return note_table.pitchData[diff.ordinal()][uiNote.string];
+    }
+
+    /**
+     * Copies the latest strum mode result, one entry per string from the lowest,
+     * into the given holders and returns the number of strings. Does not allocate.
+     */
+    public int getStrumReadings(StringReading[] readings)
+    {
+        return SharedData.INSTANCE.readStrum(readings);
     }
 }
@@ -0,0 +1,269 @@
+package km.tool.kmtuner.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import km.tool.kmtuner.dsp.PitchData;
+import km.tool.kmtuner.dsp.PitchDetector;
+import km.tool.kmtuner.dsp.SampleRingBuffer;
+
+/**
+ * Offline pitch tracking of recorded takes.
+ *
+ * Every input file is split into chunks of analysis frames. A chunk reads its
+ * samples, plus the overlap needed by its last window, from a memory-mapped
+ * region of the file. Chunks run in parallel on a fork-join pool. Each worker
+ * thread keeps its own analyzer and buffers, so nothing is shared or allocated
+ * per frame. The result for foo.wav is written to foo.pitch.tsv.
+ *
+ * <pre>
+ * usage: BatchPitchTracker [-w window] [-h hop] [-p double|float] [-t threads] [-o dir] file.wav...
+ * </pre>
+ */
+public class BatchPitchTracker
+{
+    public static final int DEFAULT_WINDOW_SIZE = 4096;
+    public static final int DEFAULT_HOP_SIZE = 512;
+
+    /** Analysis frames per fork-join leaf (about 3 s of audio at the default hop). */
+    private static final int CHUNK_FRAMES = 256;
+
+    private final int windowSize;
+    private final int hopSize;
+    private final PitchDetector.Precision precision;
+    private final ForkJoinPool pool;
+
+    public BatchPitchTracker(int window_size, int hop_size, PitchDetector.Precision precision, int threads)
+    {
+        if(hop_size <= 0 || hop_size > window_size / 2)
+        {
+            throw new IllegalArgumentException("hop_size: " + hop_size);
+        }
+
+        this.windowSize = window_size;
+        this.hopSize = hop_size;
+        this.precision = precision;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public PitchTrack track(File input) throws IOException
+    {
+        WavFile wav = new WavFile(input);
+        try
+        {
+            Workspaces workspaces = new Workspaces(wav.sampleRate());
+            PitchTrack track = new PitchTrack(
+                    wav.frameCount(), wav.sampleRate(), hopSize, workspaces.inputLength);
+
+            pool.invoke(new ChunkTask(wav, track, workspaces, 0, track.size()));
+
+            return track;
+        }
+        catch(ChunkException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            wav.close();
+        }
+    }
+
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int window_size = DEFAULT_WINDOW_SIZE;
+        int hop_size = DEFAULT_HOP_SIZE;
+        PitchDetector.Precision precision = PitchDetector.Precision.DOUBLE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File output_dir = null;
+        List<File> inputs = new ArrayList<File>();
+
+        for(int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if(arg.equals("-w") && i + 1 < args.length)
+                window_size = Integer.parseInt(args[++i]);
+            else if(arg.equals("-h") && i + 1 < args.length)
+                hop_size = Integer.parseInt(args[++i]);
+            else if(arg.equals("-p") && i + 1 < args.length)
+                precision = PitchDetector.Precision.valueOf(args[++i].toUpperCase());
+            else if(arg.equals("-t") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if(arg.equals("-o") && i + 1 < args.length)
+                output_dir = new File(args[++i]);
+            else if(arg.startsWith("-"))
+                usage();
+            else
+                inputs.add(new File(arg));
+        }
+        if(inputs.isEmpty())
+        {
+            usage();
+        }
+        if(output_dir != null && !output_dir.isDirectory() && !output_dir.mkdirs())
+        {
+            throw new IOException("cannot create " + output_dir);
+        }
+
+        BatchPitchTracker tracker = new BatchPitchTracker(window_size, hop_size, precision, threads);
+        try
+        {
+            for(File input : inputs)
+            {
+                long start = System.nanoTime();
+                PitchTrack track = tracker.track(input);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+
+                String name = input.getName().replaceFirst("(?i)\\.wav$", "") + ".pitch.tsv";
+                File output = new File(output_dir != null ? output_dir : input.getAbsoluteFile().getParentFile(), name);
+                track.write(output);
+
+                double duration = (track.size() == 0) ? 0 : track.time(track.size() - 1);
+                System.err.println(String.format("%s: %d frames, %.1f s of audio in %.2f s (%.0fx realtime)",
+                        input, track.size(), duration, elapsed, duration / Math.max(elapsed, 1e-9)));
+            }
+        }
+        finally
+        {
+            tracker.shutdown();
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: BatchPitchTracker [-w window] [-h hop] [-p double|float] [-t threads] [-o dir] file.wav...");
+        System.exit(2);
+    }
+
+    /** Per-worker analyzer and buffers, created on first use by each pool thread. */
+    private final class Workspaces extends ThreadLocal<Workspace>
+    {
+        final int sampleRate;
+        final int inputLength;
+
+        Workspaces(int sample_rate)
+        {
+            sampleRate = sample_rate;
+            inputLength = precision.newDetector(windowSize, sample_rate).inputLength();
+        }
+
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace(precision.newDetector(windowSize, sampleRate), hopSize);
+        }
+    }
+
+    private static final class Workspace
+    {
+        final PitchDetector detector;
+        final PitchData pitchData = new PitchData();
+        final SampleRingBuffer ring;
+        final short[] samples;   // samples of one chunk, including the overlap
+
+        Workspace(PitchDetector detector, int hop_size)
+        {
+            this.detector = detector;
+            ring = new SampleRingBuffer(detector.inputLength() + hop_size);
+            samples = new short[(CHUNK_FRAMES - 1) * hop_size + detector.inputLength()];
+        }
+    }
+
+    /** Analyzes frames [from, to) of a track, splitting the range until it fits one chunk. */
+    private final class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final WavFile wav;
+        private final PitchTrack track;
+        private final Workspaces workspaces;
+        private final int from;
+        private final int to;
+
+        ChunkTask(WavFile wav, PitchTrack track, Workspaces workspaces, int from, int to)
+        {
+            this.wav = wav;
+            this.track = track;
+            this.workspaces = workspaces;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from > CHUNK_FRAMES)
+            {
+                int middle = from + (to - from) / 2;
+                invokeAll(new ChunkTask(wav, track, workspaces, from, middle),
+                          new ChunkTask(wav, track, workspaces, middle, to));
+                return;
+            }
+            if(to <= from)
+            {
+                return;
+            }
+
+            Workspace workspace = workspaces.get();
+            int input_length = workspaces.inputLength;
+
+            /** The chunk overlaps the next one by input_length - hop samples. */
+            int length = (to - from - 1) * hopSize + input_length;
+            try
+            {
+                wav.read(track.frameStart(from), length, workspace.samples);
+            }
+            catch(IOException e)
+            {
+                throw new ChunkException(e);
+            }
+
+            SampleRingBuffer ring = workspace.ring;
+            PitchData pitch_data = workspace.pitchData;
+
+            ring.clear();
+            ring.write(workspace.samples, 0, input_length);
+            for(int n = from; n < to; n++)
+            {
+                if(n > from)
+                {
+                    ring.write(workspace.samples, (n - from - 1) * hopSize + input_length, hopSize);
+                }
+
+                /** The analyzers leave the result untouched when nothing is detected. */
+                pitch_data.setPitch(0);
+                pitch_data.setClarity(0);
+                workspace.detector.getExactPitch_hz(ring, pitch_data);
+
+                track.pitch[n] = pitch_data.getPitch();
+                track.clarity[n] = pitch_data.getClarity();
+            }
+        }
+    }
+
+    /** Carries an IOException out of a fork-join task. */
+    private static final class ChunkException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ChunkException(IOException cause)
+        {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+}
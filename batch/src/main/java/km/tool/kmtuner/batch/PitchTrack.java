@@ -0,0 +1,84 @@
+package km.tool.kmtuner.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Pitch and clarity of every analysis frame of one file.
+ *
+ * Frame n covers samples [n * hop, n * hop + inputLength). Each worker fills a
+ * disjoint range of frames, so the arrays are written without locking.
+ */
+public final class PitchTrack
+{
+    private final int sampleRate;
+    private final int hopSize;
+    private final int inputLength;
+
+    final double[] pitch;    // Hz, 0 when nothing was detected
+    final double[] clarity;
+
+    public PitchTrack(long frame_count, int sample_rate, int hop_size, int input_length)
+    {
+        int frames = (frame_count < input_length)
+                ? 0 : (int) ((frame_count - input_length) / hop_size + 1);
+
+        sampleRate = sample_rate;
+        hopSize = hop_size;
+        inputLength = input_length;
+
+        pitch = new double[frames];
+        clarity = new double[frames];
+    }
+
+    public int size()
+    {
+        return pitch.length;
+    }
+
+    /** First sample of frame n. */
+    public long frameStart(int n)
+    {
+        return (long) n * hopSize;
+    }
+
+    /** Time of the centre of frame n, in seconds. */
+    public double time(int n)
+    {
+        return (frameStart(n) + inputLength / 2.0) / sampleRate;
+    }
+
+    public double pitch(int n)
+    {
+        return pitch[n];
+    }
+
+    public double clarity(int n)
+    {
+        return clarity[n];
+    }
+
+    /** Writes one "time pitch clarity" line per frame, tab separated. */
+    public void write(File output) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        try
+        {
+            writer.write(String.format(Locale.US, "# rate=%d hop=%d input=%d%n", sampleRate, hopSize, inputLength));
+            writer.write("# time_s\tpitch_hz\tclarity\n");
+            for(int n = 0; n < pitch.length; n++)
+            {
+                writer.write(String.format(Locale.US, "%.4f\t%.2f\t%.3f\n", time(n), pitch[n], clarity[n]));
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package km.tool.kmtuner.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A 16-bit PCM WAV file whose samples are read through memory-mapped regions.
+ *
+ * Only the header is read when the file is opened. {@link #read} maps just the
+ * requested frames, so any number of threads can read different parts of a
+ * file of any length at the same time. Multi-channel files are mixed down to mono.
+ */
+public final class WavFile implements Closeable
+{
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int blockAlign;    // bytes per frame
+    private final long dataOffset;   // file position of the first frame
+    private final long frameCount;
+
+    public WavFile(File path) throws IOException
+    {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if(header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE"))
+            {
+                throw new IOException(path + ": not a RIFF/WAVE file");
+            }
+
+            int sample_rate = 0;
+            int channel_count = 0;
+            int block_align = 0;
+            long data_offset = -1;
+            long data_size = 0;
+
+            /** Walk the chunks until both "fmt " and "data" have been seen. */
+            ByteBuffer chunk = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 12;
+            while(position + 8 <= channel.size() && (block_align == 0 || data_offset < 0))
+            {
+                chunk.clear().limit(8);
+                readFully(chunk, position);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+
+                if(id == fourCC("fmt "))
+                {
+                    chunk.clear().limit(16);
+                    readFully(chunk, position + 8);
+                    int format = chunk.getShort(0) & 0xFFFF;
+                    int bits = chunk.getShort(14) & 0xFFFF;
+                    if((format != FORMAT_PCM && format != FORMAT_EXTENSIBLE) || bits != 16)
+                    {
+                        throw new IOException(path + ": only 16-bit PCM is supported (format "
+                                + format + ", " + bits + " bits)");
+                    }
+                    channel_count = chunk.getShort(2) & 0xFFFF;
+                    sample_rate = chunk.getInt(4);
+                    block_align = chunk.getShort(12) & 0xFFFF;
+                }
+                else if(id == fourCC("data"))
+                {
+                    data_offset = position + 8;
+                    data_size = size;
+                }
+
+                /** Chunks are padded to an even size. */
+                position += 8 + size + (size & 1);
+            }
+
+            if(block_align == 0 || data_offset < 0 || channel_count == 0)
+            {
+                throw new IOException(path + ": missing fmt or data chunk");
+            }
+
+            /** Recorders that were interrupted leave the size at 0 or 0xFFFFFFFF. */
+            long available = channel.size() - data_offset;
+            if(data_size == 0 || data_size > available)
+            {
+                data_size = available;
+            }
+
+            sampleRate = sample_rate;
+            channels = channel_count;
+            blockAlign = block_align;
+            dataOffset = data_offset;
+            frameCount = data_size / block_align;
+        }
+        catch(IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int sampleRate()
+    {
+        return sampleRate;
+    }
+
+    public int channels()
+    {
+        return channels;
+    }
+
+    public long frameCount()
+    {
+        return frameCount;
+    }
+
+    /** Copies frames [first_frame, first_frame + count), mixed down to mono, into dst[0..count). */
+    public void read(long first_frame, int count, short[] dst) throws IOException
+    {
+        if(first_frame < 0 || count < 0 || first_frame + count > frameCount)
+        {
+            throw new IndexOutOfBoundsException("frames " + first_frame + "+" + count + " of " + frameCount);
+        }
+
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                dataOffset + first_frame * blockAlign, (long) count * blockAlign);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(channels == 1)
+        {
+            region.asShortBuffer().get(dst, 0, count);
+            return;
+        }
+
+        for(int i = 0; i < count; i++)
+        {
+            int base = i * blockAlign;
+            int sum = 0;
+            for(int c = 0; c < channels; c++)
+            {
+                sum += region.getShort(base + 2 * c);
+            }
+            dst[i] = (short) (sum / channels);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position + buffer.position());
+            if(read < 0)
+            {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
+    private static int fourCC(String id)
+    {
+        return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}
@@ -0,0 +1,618 @@
+package km.tool.kmtuner.dsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Accuracy-versus-cost regression check of the pitch detectors, without a device.
+ *
+ * Every detector configuration (precision x window size x engine) analyzes the
+ * same generated corpus through the ring-buffer path used by Tuner.run():
+ * <ul>
+ * <li>tones: pure sines at each string of standard tuning, detuned by up to 50 cents</li>
+ * <li>plucked: decaying harmonic-rich tones</li>
+ * <li>noise30/20/10: sustained harmonic tones with white noise at that SNR in dB</li>
+ * <li>octave: a dominant second harmonic, and a missing fundamental</li>
+ * <li>alias: harmonic tones with an equally strong sine just above the Nyquist
+ * frequency of the decimated engine, which its low-pass filter has to remove</li>
+ * <li>recorded: optional WAV files named like {@code a_string_110.0hz.wav}</li>
+ * </ul>
+ *
+ * For each configuration and category it reports the share of frames detected
+ * (clarity at least 0.75), the median and 95th percentile error in cents and the
+ * octave-error rate (errors of 600 cents or more). For each configuration it
+ * reports the analysis time per frame over the whole corpus, the best of
+ * TIMING_RUNS passes. The time is also expressed in multiply-adds of a
+ * calibration loop, which keeps it comparable between machines.
+ *
+ * The results are checked against a baseline file, and the exit status is 1
+ * when any of them is worse by more than the tolerances below. Run with
+ * {@code ./gradlew :bench:accuracy}; add -PupdateBaseline to rewrite the baseline.
+ *
+ * <pre>
+ * usage: AccuracySuite [--baseline file] [--update] [--no-timing] [--recordings dir]
+ * </pre>
+ */
+public class AccuracySuite
+{
+    private static final int SAMPLING_RATE = 44100;
+    private static final int MIN_WINDOW_SIZE = 1024;
+    private static final int HOP_SIZE = 512;
+    private static final double CLARITY_THRESHOLD = 0.75;
+
+    private static final int[] WINDOW_SIZES = {2048, 4096, 8192};
+    private static final double[] DETUNE_CENTS = {-50, -25, 0, 25, 50};
+    private static final double[] SNR_DB = {30, 20, 10};
+
+    /** The decimated engine analyzes at 11025 Hz, as Tuner does with setDecimationFactor(4). */
+    private static final int DECIMATION_FACTOR = 4;
+    /** 5% above the Nyquist frequency after decimation; aliases to about 5240 Hz unless filtered out. */
+    private static final double ALIAS_HZ = 1.05 * SAMPLING_RATE / 2 / DECIMATION_FACTOR;
+
+    /** An error this large is an octave (or fifth) error rather than a tuning error. */
+    private static final double OCTAVE_ERROR_CENTS = 600;
+
+    /** Allowed regressions against the baseline. */
+    private static final double CENTS_TOLERANCE = 0.5;       // absolute, on top of 25% relative
+    private static final double RATE_TOLERANCE = 0.01;       // octave-error and detection rates
+    private static final double TIME_TOLERANCE = 1.5;        // factor on the calibrated time
+
+    /** Passes over the corpus per configuration; the fastest one is reported. */
+    private static final int TIMING_RUNS = 3;
+
+    /**
+     * The period search range Tuner sets for standard tuning (Tuner.setPitchRange()):
+     * WIDE_RANGE_CENTS below the lowest string, two octaves above the highest.
+     */
+    private static final double WIDE_RANGE_CENTS = 300.0;
+    private static final double RANGE_MIN_HZ = new NoteClassifier().noteHz(Tuning.STANDARD.note(0))
+            * Math.pow(2.0, -WIDE_RANGE_CENTS / 1200.0);
+    private static final double RANGE_MAX_HZ = new NoteClassifier().noteHz(
+            Tuning.STANDARD.note(Tuning.STANDARD.stringCount() - 1)) * 4;
+
+    private static final Pattern RECORDING_NAME = Pattern.compile("_([0-9]+(?:\\.[0-9]+)?)hz\\.wav$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * range: the search range Tuner uses; range_tracking: that and tracking, Tuner's
+     * fixed-window setup; decimated: a fixed window over the input decimated by
+     * DECIMATION_FACTOR (the window shrinks by the same factor, as in Tuner).
+     */
+    private enum Engine
+    {
+        FIXED(false, false, 1),
+        TRACKING(true, false, 1),
+        RANGE(false, true, 1),
+        RANGE_TRACKING(true, true, 1),
+        ADAPTIVE(false, false, 1),
+        DECIMATED(false, false, DECIMATION_FACTOR);
+
+        private final boolean tracking;
+        private final boolean range;
+        private final int decimation;
+
+        Engine(boolean tracking, boolean range, int decimation)
+        {
+            this.tracking = tracking;
+            this.range = range;
+            this.decimation = decimation;
+        }
+
+        PitchDetector newDetector(PitchDetector.Precision precision, int window_size)
+        {
+            PitchDetector detector;
+            if(this == ADAPTIVE)
+            {
+                detector = new AdaptivePitchDetector(
+                        MIN_WINDOW_SIZE, window_size, SAMPLING_RATE, CLARITY_THRESHOLD, precision);
+            }
+            else
+            {
+                detector = precision.newDetector(window_size / decimation, SAMPLING_RATE / decimation);
+            }
+            detector.setTracking(tracking, CLARITY_THRESHOLD);
+            if(range)
+            {
+                detector.setPitchRange(RANGE_MIN_HZ, RANGE_MAX_HZ);
+            }
+            return detector;
+        }
+
+        /** null when the engine analyzes the input as it is. */
+        Decimator newDecimator()
+        {
+            return (decimation > 1) ? new Decimator(decimation) : null;
+        }
+    }
+
+    /** One signal of the corpus with the pitch it should be detected at. */
+    private static final class Case
+    {
+        final String category;
+        final double hz;
+        final short[] samples;
+
+        Case(String category, double hz, short[] samples)
+        {
+            this.category = category;
+            this.hz = hz;
+            this.samples = samples;
+        }
+    }
+
+    /** Frame results of one configuration and category. */
+    private static final class Result
+    {
+        final String key;
+        int frames;
+        int detected;
+        int octaveErrors;
+        double[] cents = new double[256];   // |error| of detected frames without octave errors
+        int centsCount;
+
+        Result(String key)
+        {
+            this.key = key;
+        }
+
+        void add(double error_cents)
+        {
+            if(centsCount == cents.length)
+            {
+                cents = Arrays.copyOf(cents, 2 * cents.length);
+            }
+            cents[centsCount++] = Math.abs(error_cents);
+        }
+
+        double percentile(double fraction)
+        {
+            if(centsCount == 0)
+            {
+                return 0;
+            }
+            double[] sorted = Arrays.copyOf(cents, centsCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min(centsCount - 1, (int) Math.ceil(fraction * centsCount) - 1)];
+        }
+
+        double detectRate()
+        {
+            return (frames == 0) ? 0 : (double) detected / frames;
+        }
+
+        double octaveRate()
+        {
+            return (detected == 0) ? 0 : (double) octaveErrors / detected;
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        File baseline = null;
+        boolean update = false;
+        boolean timing = true;
+        File recordings = null;
+
+        for(int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if(arg.equals("--baseline") && i + 1 < args.length)
+                baseline = new File(args[++i]);
+            else if(arg.equals("--update"))
+                update = true;
+            else if(arg.equals("--no-timing"))
+                timing = false;
+            else if(arg.equals("--recordings") && i + 1 < args.length)
+                recordings = new File(args[++i]);
+            else
+                usage();
+        }
+
+        List<Case> corpus = corpus();
+        if(recordings != null)
+        {
+            corpus.addAll(recordings(recordings));
+        }
+
+        /** Let the JIT compile every engine before anything is timed. */
+        for(PitchDetector.Precision precision : PitchDetector.Precision.values())
+        {
+            for(Engine engine : Engine.values())
+            {
+                run(corpus, precision, WINDOW_SIZES[0], engine, new ArrayList<Result>());
+            }
+        }
+
+        double nanos_per_mac = calibrate();
+        Properties measured = new Properties();
+
+        System.out.println(String.format("%-36s %7s %8s %8s %8s %8s",
+                "configuration/category", "frames", "detect", "p50_ct", "p95_ct", "octave"));
+        List<String> timings = new ArrayList<String>();
+        for(PitchDetector.Precision precision : PitchDetector.Precision.values())
+        {
+            for(int window_size : WINDOW_SIZES)
+            {
+                for(Engine engine : Engine.values())
+                {
+                    List<Result> results = new ArrayList<Result>();
+                    double nanos_per_frame = run(corpus, precision, window_size, engine, results);
+                    for(int i = 1; i < TIMING_RUNS; i++)
+                    {
+                        nanos_per_frame = Math.min(nanos_per_frame,
+                                run(corpus, precision, window_size, engine, new ArrayList<Result>()));
+                    }
+
+                    for(Result result : results)
+                    {
+                        System.out.println(String.format(Locale.US, "%-36s %7d %7.1f%% %8.2f %8.2f %7.2f%%",
+                                result.key, result.frames, 100 * result.detectRate(), result.percentile(0.50),
+                                result.percentile(0.95), 100 * result.octaveRate()));
+
+                        measured.setProperty(result.key + "/detect", format(result.detectRate()));
+                        measured.setProperty(result.key + "/p95_cents", format(result.percentile(0.95)));
+                        measured.setProperty(result.key + "/octave", format(result.octaveRate()));
+                    }
+
+                    String configuration = configuration(precision, window_size, engine);
+                    double kmac = nanos_per_frame / nanos_per_mac / 1e3;
+                    timings.add(String.format(Locale.US, "%-36s %9.1f %9.1f", configuration, nanos_per_frame / 1e3, kmac));
+                    measured.setProperty(configuration + "/kmac", format(kmac));
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-36s %9s %9s", "configuration", "us/frame", "kMAC"));
+        for(String timing_row : timings)
+        {
+            System.out.println(timing_row);
+        }
+
+        if(baseline == null)
+        {
+            return;
+        }
+        if(update || !baseline.exists())
+        {
+            /** Written in key order (Properties.store() does not sort), so that updates diff cleanly. */
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(baseline), "ISO-8859-1"));
+            try
+            {
+                out.println("# AccuracySuite baseline; regenerate with ./gradlew :bench:accuracy -PupdateBaseline");
+                for(String key : new TreeSet<String>(measured.stringPropertyNames()))
+                {
+                    out.println(key + "=" + measured.getProperty(key));
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            System.out.println("baseline written to " + baseline);
+            return;
+        }
+
+        Properties expected = new Properties();
+        InputStream in = new FileInputStream(baseline);
+        try
+        {
+            expected.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        int failures = compare(expected, measured, timing);
+        if(failures > 0)
+        {
+            System.out.println(failures + " regression(s) against " + baseline);
+            System.exit(1);
+        }
+        System.out.println("no regressions against " + baseline);
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: AccuracySuite [--baseline file] [--update] [--no-timing] [--recordings dir]");
+        System.exit(2);
+    }
+
+    private static String configuration(PitchDetector.Precision precision, int window_size, Engine engine)
+    {
+        return precision + "-" + window_size + "-" + engine.name().toLowerCase(Locale.US);
+    }
+
+    /** Analyzes the corpus, adding one Result per category, and returns the analysis time per frame. */
+    private static double run(List<Case> corpus, PitchDetector.Precision precision, int window_size,
+                              Engine engine, List<Result> results)
+    {
+        String configuration = configuration(precision, window_size, engine);
+        short[] record_buffer = new short[HOP_SIZE];
+        short[] decimated_buffer = new short[HOP_SIZE];
+        PitchData pitch_data = new PitchData();
+        long nanos = 0;
+        long frames = 0;
+
+        Result result = null;
+        for(Case signal : corpus)
+        {
+            String key = configuration + "/" + signal.category;
+            if(result == null || !result.key.equals(key))
+            {
+                result = new Result(key);
+                results.add(result);
+            }
+
+            /** Every signal starts from a fresh detector, so tracking state never leaks between cases. */
+            PitchDetector detector = engine.newDetector(precision, window_size);
+            Decimator decimator = engine.newDecimator();
+            SampleRingBuffer ring = new SampleRingBuffer(detector.inputLength() + HOP_SIZE);
+
+            for(int offset = 0; offset + HOP_SIZE <= signal.samples.length; offset += HOP_SIZE)
+            {
+                System.arraycopy(signal.samples, offset, record_buffer, 0, HOP_SIZE);
+
+                if(decimator != null)
+                {
+                    /** The filter is part of the cost of a decimated frame. */
+                    long start = System.nanoTime();
+                    int decimated = decimator.process(record_buffer, 0, HOP_SIZE, decimated_buffer);
+                    nanos += System.nanoTime() - start;
+                    ring.write(decimated_buffer, 0, decimated);
+                }
+                else
+                {
+                    ring.write(record_buffer, 0, HOP_SIZE);
+                }
+                if(ring.available() < detector.inputLength())
+                    continue;
+
+                pitch_data.setPitch(0);
+                pitch_data.setClarity(0);
+
+                long start = System.nanoTime();
+                detector.getExactPitch_hz(ring, pitch_data);
+                nanos += System.nanoTime() - start;
+                frames++;
+                result.frames++;
+
+                if(pitch_data.getClarity() < CLARITY_THRESHOLD || pitch_data.getPitch() <= 0)
+                    continue;
+
+                result.detected++;
+                double error_cents = 1200.0 * Math.log(pitch_data.getPitch() / signal.hz) / Math.log(2.0);
+                if(Math.abs(error_cents) >= OCTAVE_ERROR_CENTS)
+                    result.octaveErrors++;
+                else
+                    result.add(error_cents);
+            }
+        }
+
+        return (frames == 0) ? 0 : (double) nanos / frames;
+    }
+
+    /** Returns the number of metrics that regressed, printing each of them. */
+    private static int compare(Properties expected, Properties measured, boolean timing)
+    {
+        int failures = 0;
+        for(String key : measured.stringPropertyNames())
+        {
+            String base = expected.getProperty(key);
+            if(base == null)
+            {
+                System.out.println("new: " + key + " = " + measured.getProperty(key));
+                continue;
+            }
+
+            double was = Double.parseDouble(base);
+            double now = Double.parseDouble(measured.getProperty(key));
+            boolean regressed;
+            if(key.endsWith("/detect"))
+                regressed = now < was - RATE_TOLERANCE;
+            else if(key.endsWith("/octave"))
+                regressed = now > was + RATE_TOLERANCE;
+            else if(key.endsWith("/p95_cents"))
+                regressed = now > Math.max(1.25 * was, was + CENTS_TOLERANCE);
+            else
+                regressed = timing && now > TIME_TOLERANCE * was;
+
+            if(regressed)
+            {
+                System.out.println("REGRESSION: " + key + " " + base + " -> " + measured.getProperty(key));
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.US, "%.4f", value);
+    }
+
+    /** Nanoseconds per multiply-add of a plain dot product, the best of several runs. */
+    private static double calibrate()
+    {
+        double[] a = new double[4096];
+        double[] b = new double[4096];
+        for(int i = 0; i < a.length; i++)
+        {
+            a[i] = Math.sin(i);
+            b[i] = Math.cos(i);
+        }
+
+        double best = Double.MAX_VALUE;
+        double sink = 0;
+        for(int run = 0; run < 20; run++)
+        {
+            long start = System.nanoTime();
+            for(int repeat = 0; repeat < 256; repeat++)
+            {
+                double sum = 0;
+                for(int i = 0; i < a.length; i++)
+                {
+                    sum += a[i] * b[i];
+                }
+                sink += sum;
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (256.0 * a.length));
+        }
+        if(sink == 42)
+        {
+            System.out.println();   // keeps the loop from being optimized away
+        }
+        return best;
+    }
+
+    private static List<Case> corpus()
+    {
+        List<Case> corpus = new ArrayList<Case>();
+        NoteClassifier classifier = new NoteClassifier();
+        Tuning tuning = Tuning.STANDARD;
+        long seed = 1;
+
+        for(int string = 0; string < tuning.stringCount(); string++)
+        {
+            double hz = classifier.noteHz(tuning.note(string));
+
+            for(double cents : DETUNE_CENTS)
+            {
+                double detuned = hz * Math.pow(2.0, cents / 1200.0);
+                corpus.add(new Case("tones", detuned, render(
+                        new SyntheticSource(SAMPLING_RATE, detuned, seed++).setHarmonics(1.0), 0.5)));
+            }
+        }
+        for(int string = 0; string < tuning.stringCount(); string++)
+        {
+            double hz = classifier.noteHz(tuning.note(string));
+
+            for(double cents : new double[]{-20, 0, 20})
+            {
+                double detuned = hz * Math.pow(2.0, cents / 1200.0);
+                corpus.add(new Case("plucked", detuned, render(
+                        new SyntheticSource(SAMPLING_RATE, detuned, seed++)
+                                .setHarmonics(0.5, 0.35, 0.25, 0.15, 0.1, 0.05)
+                                .setNoise(0.0003)
+                                .setEnvelope(0.6, 0), 1.5)));
+            }
+        }
+        for(double snr : SNR_DB)
+        {
+            double[] harmonics = {0.6, 0.3, 0.1};
+            double amplitude = 0.3;
+            double power = 0;
+            for(double h : harmonics)
+            {
+                power += h * h / 2;
+            }
+            double noise = amplitude * Math.sqrt(power) / Math.pow(10.0, snr / 20.0);
+
+            for(int string = 0; string < tuning.stringCount(); string++)
+            {
+                double hz = classifier.noteHz(tuning.note(string));
+                corpus.add(new Case("noise" + (int) snr, hz, render(
+                        new SyntheticSource(SAMPLING_RATE, hz, seed++)
+                                .setHarmonics(harmonics)
+                                .setAmplitude(amplitude)
+                                .setNoise(noise), 0.75)));
+            }
+        }
+        for(int string = 0; string < tuning.stringCount(); string++)
+        {
+            double hz = classifier.noteHz(tuning.note(string));
+            corpus.add(new Case("octave", hz, render(
+                    new SyntheticSource(SAMPLING_RATE, hz, seed++).setHarmonics(0.25, 1.0, 0.2), 0.75)));
+            corpus.add(new Case("octave", hz, render(
+                    new SyntheticSource(SAMPLING_RATE, hz, seed++).setHarmonics(0, 1.0, 0.7, 0.5), 0.75)));
+        }
+        for(int string = 0; string < tuning.stringCount(); string++)
+        {
+            double hz = classifier.noteHz(tuning.note(string));
+            corpus.add(new Case("alias", hz, mix(
+                    render(new SyntheticSource(SAMPLING_RATE, hz, seed++).setHarmonics(0.6, 0.3, 0.1), 0.75),
+                    render(new SyntheticSource(SAMPLING_RATE, ALIAS_HZ, seed++).setHarmonics(1.0), 0.75))));
+        }
+
+        return corpus;
+    }
+
+    /** The sum of two signals of the same length, clipped to 16 bits. */
+    private static short[] mix(short[] a, short[] b)
+    {
+        short[] sum = new short[a.length];
+        for(int i = 0; i < sum.length; i++)
+        {
+            sum[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, a[i] + b[i]));
+        }
+        return sum;
+    }
+
+    /** WAV files whose name ends in _&lt;hz&gt;hz.wav, with that pitch as the expected one. */
+    private static List<Case> recordings(File directory) throws IOException
+    {
+        List<Case> cases = new ArrayList<Case>();
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            throw new IOException("not a directory: " + directory);
+        }
+        Arrays.sort(files);
+
+        for(File file : files)
+        {
+            Matcher matcher = RECORDING_NAME.matcher(file.getName());
+            if(!matcher.find())
+                continue;
+
+            PcmReplaySource source = PcmReplaySource.fromWav(new FileInputStream(file));
+            if(source.sampleRate() != SAMPLING_RATE)
+            {
+                source.release();
+                System.out.println("skipped " + file + ": " + source.sampleRate() + " Hz");
+                continue;
+            }
+            cases.add(new Case("recorded", Double.parseDouble(matcher.group(1)), render(source, -1)));
+        }
+        return cases;
+    }
+
+    /** Reads a source to the end, or for the given number of seconds. */
+    private static short[] render(AudioSource source, double seconds)
+    {
+        short[] samples = new short[(seconds > 0) ? (int) (seconds * SAMPLING_RATE) : SAMPLING_RATE];
+        int length = 0;
+
+        source.start();
+        while(true)
+        {
+            if(length == samples.length)
+            {
+                if(seconds > 0)
+                    break;
+                samples = Arrays.copyOf(samples, 2 * samples.length);
+            }
+
+            int read_size = source.read(samples, length, samples.length - length);
+            if(read_size == AudioSource.END_OF_STREAM)
+                break;
+            length += Math.max(read_size, 0);
+        }
+        source.release();
+
+        return Arrays.copyOf(samples, length);
+    }
+}
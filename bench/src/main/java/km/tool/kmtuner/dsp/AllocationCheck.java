@@ -0,0 +1,203 @@
+package km.tool.kmtuner.dsp;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks that the pitch detectors allocate nothing per frame once warmed up.
+ *
+ * Every detector configuration (double/float x fixed/tracking/range/adaptive)
+ * analyzes a plucked tone that sweeps over an octave, so that the tracking
+ * fallbacks and the adaptive window changes are taken while measuring. It is fed
+ * through the short[] path and through the ring-buffer path, with both a heap
+ * ring and a direct one (Tuner's direct capture). After WARMUP_FRAMES frames
+ * the bytes allocated by this thread over FRAMES frames must be zero; the exit
+ * status is 1 otherwise. Run with {@code ./gradlew :bench:allocation}.
+ *
+ * The JIT can allocate once when it deoptimizes code (it materializes objects it
+ * had scalar-replaced). Such one-off allocations are told apart from per-frame ones
+ * by measuring up to ROUNDS times: FRAMES covers the whole looped signal, so an
+ * allocation in the detectors shows up in every round.
+ *
+ * Needs a JVM that counts the bytes allocated per thread
+ * (com.sun.management.ThreadMXBean); on others the check is skipped.
+ */
+public class AllocationCheck
+{
+    private static final int SAMPLING_RATE = 44100;
+    private static final int WINDOW_SIZE = 4096;
+    private static final int MIN_WINDOW_SIZE = 1024;
+    private static final int HOP_SIZE = 512;
+    private static final double CLARITY_THRESHOLD = 0.75;
+
+    private static final int WARMUP_FRAMES = 10000;
+    private static final int FRAMES = 2000;
+    private static final int ROUNDS = 3;
+
+    private static final double SIGNAL_SECONDS = 10.0;
+
+    private enum Path
+    {
+        ARRAY, RING, DIRECT_RING
+    }
+
+    private enum Engine
+    {
+        FIXED, TRACKING, RANGE, ADAPTIVE;
+
+        PitchDetector newDetector(PitchDetector.Precision precision)
+        {
+            PitchDetector detector;
+            if(this == ADAPTIVE)
+            {
+                detector = new AdaptivePitchDetector(
+                        MIN_WINDOW_SIZE, WINDOW_SIZE, SAMPLING_RATE, CLARITY_THRESHOLD, precision);
+            }
+            else
+            {
+                detector = precision.newDetector(WINDOW_SIZE, SAMPLING_RATE);
+            }
+            detector.setTracking(this != FIXED, CLARITY_THRESHOLD);
+            if(this == RANGE || this == ADAPTIVE)
+            {
+                detector.setPitchRange(69.3, 1318.5);  // what the tuner searches in standard tuning
+            }
+            return detector;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+        {
+            System.out.println("allocation check skipped: the JVM does not count allocated bytes per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean thread_bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if(!thread_bean.isThreadAllocatedMemorySupported() || !thread_bean.isThreadAllocatedMemoryEnabled())
+        {
+            System.out.println("allocation check skipped: allocated memory is not counted per thread");
+            return;
+        }
+
+        short[] signal = signal();
+
+        List<String> failures = new ArrayList<String>();
+        System.out.println(String.format("%-28s %14s", "detector/path", "bytes/frame"));
+        for(PitchDetector.Precision precision : PitchDetector.Precision.values())
+        {
+            for(Engine engine : Engine.values())
+            {
+                for(Path path : Path.values())
+                {
+                    /** Tracking and the pitch range only apply to the ring-buffer path. */
+                    if(path == Path.ARRAY && engine != Engine.FIXED)
+                        continue;
+
+                    String name = precision + "-" + engine.name().toLowerCase(Locale.US) + "/" + path.name().toLowerCase(Locale.US);
+                    long bytes = measure(thread_bean, engine.newDetector(precision), path, signal);
+                    System.out.println(String.format("%-28s %14.2f", name, (double) bytes / FRAMES));
+                    if(bytes != 0)
+                    {
+                        failures.add(name + ": " + bytes + " bytes in " + FRAMES + " frames");
+                    }
+                }
+            }
+        }
+
+        if(!failures.isEmpty())
+        {
+            for(String failure : failures)
+            {
+                System.out.println("allocates per frame: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("no allocation per frame");
+    }
+
+    /** A plucked tone sweeping an octave up from the A string, replayed in a loop. */
+    private static short[] signal()
+    {
+        SyntheticSource source = new SyntheticSource(SAMPLING_RATE, 110.0, 1)
+                .setHarmonics(0.6, 0.3, 0.1)
+                .setNoise(0.01)
+                .setEnvelope(1.0, 2.0)
+                .setSweep(1200, SIGNAL_SECONDS)
+                .setDuration(SIGNAL_SECONDS);
+
+        short[] signal = new short[(int) (SIGNAL_SECONDS * SAMPLING_RATE)];
+        int filled = 0;
+        int read_size;
+        while(filled < signal.length
+                && (read_size = source.read(signal, filled, signal.length - filled)) != AudioSource.END_OF_STREAM)
+        {
+            filled += read_size;
+        }
+        return signal;
+    }
+
+    /** Bytes this thread allocated over FRAMES frames after WARMUP_FRAMES frames; the fewest of up to ROUNDS tries. */
+    private static long measure(com.sun.management.ThreadMXBean thread_bean, PitchDetector detector,
+                                Path path, short[] signal)
+    {
+        int input_length = detector.inputLength();
+        SampleRingBuffer ring = (path == Path.DIRECT_RING)
+                ? SampleRingBuffer.allocateDirect(input_length + HOP_SIZE, HOP_SIZE, 1)
+                : new SampleRingBuffer(input_length + HOP_SIZE);
+        short[] window = new short[input_length];
+        PitchData pitch_data = new PitchData();
+
+        /** Also warms up the counter itself, whose first calls may allocate. */
+        int position = analyze(detector, path, signal, 0, WARMUP_FRAMES, ring, window, pitch_data);
+        long thread_id = Thread.currentThread().getId();
+        thread_bean.getThreadAllocatedBytes(thread_id);
+
+        long overhead_start = thread_bean.getThreadAllocatedBytes(thread_id);
+        long overhead = thread_bean.getThreadAllocatedBytes(thread_id) - overhead_start;
+
+        long bytes = Long.MAX_VALUE;
+        for(int round = 0; round < ROUNDS && bytes != 0; round++)
+        {
+            long start = thread_bean.getThreadAllocatedBytes(thread_id);
+            position = analyze(detector, path, signal, position, FRAMES, ring, window, pitch_data);
+            long end = thread_bean.getThreadAllocatedBytes(thread_id);
+
+            bytes = Math.min(bytes, Math.max(end - start - overhead, 0));
+        }
+        return bytes;
+    }
+
+    /** Analyzes frames hops of the looped signal from position; returns the next position. */
+    private static int analyze(PitchDetector detector, Path path, short[] signal, int position, int frames,
+                               SampleRingBuffer ring, short[] window, PitchData pitch_data)
+    {
+        int input_length = window.length;
+        for(int frame = 0; frame < frames; frame++)
+        {
+            if(position + input_length > signal.length)
+            {
+                position = 0;
+            }
+
+            if(path == Path.ARRAY)
+            {
+                System.arraycopy(signal, position, window, 0, input_length);
+                detector.getExactPitch_hz(window, pitch_data);
+            }
+            else
+            {
+                ring.write(signal, position, HOP_SIZE);
+                if(ring.available() >= input_length)
+                {
+                    detector.getExactPitch_hz(ring, pitch_data);
+                }
+            }
+            position += HOP_SIZE;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,96 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * Measures how much faster than realtime the analysis loop runs, without a device.
+ *
+ * A SyntheticSource (a plucked-string-like tone sweeping over a semitone, with
+ * noise) is fed through the same read / ring buffer / analyze loop as
+ * Tuner.run(), unthrottled, for each detector configuration. The scheduled
+ * rows replay plucks that decay into silence every 4 s through an
+ * AnalysisScheduler and also count the frames it skipped. Run with
+ * {@code ./gradlew :bench:throughput}.
+ */
+public class PipelineThroughput
+{
+    private static final int SAMPLING_RATE = 44100;
+    private static final int WINDOW_SIZE = 4096;
+    private static final int MIN_WINDOW_SIZE = 1024;
+    private static final int HOP_SIZE = 512;
+    private static final double CLARITY_THRESHOLD = 0.75;
+
+    private static final double SECONDS = 60.0;
+
+    public static void main(String[] args)
+    {
+        System.out.println(String.format("%-20s %10s %12s %10s %10s", "detector", "frames", "frames/s", "realtime", "skipped"));
+
+        for(PitchDetector.Precision precision : PitchDetector.Precision.values())
+        {
+            run(precision + " fixed", precision.newDetector(WINDOW_SIZE, SAMPLING_RATE), sweep(), null);
+            run(precision + " adaptive", new AdaptivePitchDetector(
+                    MIN_WINDOW_SIZE, WINDOW_SIZE, SAMPLING_RATE, CLARITY_THRESHOLD, precision), sweep(), null);
+            run(precision + " plucks", precision.newDetector(WINDOW_SIZE, SAMPLING_RATE), plucks(), null);
+            run(precision + " plucks scheduled", precision.newDetector(WINDOW_SIZE, SAMPLING_RATE), plucks(),
+                    new AnalysisScheduler(CLARITY_THRESHOLD));
+        }
+    }
+
+    private static AudioSource sweep()
+    {
+        return new SyntheticSource(SAMPLING_RATE, 110.0, 1)
+                .setHarmonics(0.6, 0.3, 0.1)
+                .setNoise(0.01)
+                .setSweep(100, SECONDS)
+                .setDuration(SECONDS);
+    }
+
+    private static AudioSource plucks()
+    {
+        return new SyntheticSource(SAMPLING_RATE, 110.0, 1)
+                .setHarmonics(0.6, 0.3, 0.1)
+                .setNoise(0.0003)
+                .setEnvelope(0.5, 4.0)
+                .setDuration(SECONDS);
+    }
+
+    private static void run(String name, PitchDetector detector, AudioSource source, AnalysisScheduler scheduler)
+    {
+        short[] record_buffer = new short[HOP_SIZE];
+        SampleRingBuffer ring = new SampleRingBuffer(detector.inputLength() + HOP_SIZE);
+        PitchData pitch_data = new PitchData();
+        long frames = 0;
+
+        long start = System.nanoTime();
+
+        source.start();
+        while(true)
+        {
+            int read_size = source.read(record_buffer, 0, record_buffer.length);
+            if(read_size == AudioSource.END_OF_STREAM)
+                break;
+            if(read_size <= 0)
+                continue;
+
+            ring.write(record_buffer, 0, read_size);
+            if(ring.available() < detector.inputLength())
+                continue;
+
+            if(scheduler != null && scheduler.next(ring) != AnalysisScheduler.Decision.ANALYZE)
+                continue;
+
+            detector.getExactPitch_hz(ring, pitch_data);
+            frames++;
+
+            if(scheduler != null)
+                scheduler.update(pitch_data);
+        }
+        source.release();
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long skipped = (scheduler == null) ? 0 : scheduler.skippedSilent() + scheduler.skippedStable();
+
+        System.out.println(String.format("%-20s %10d %12.0f %9.0fx %10d",
+                name, frames, frames / elapsed, SECONDS / elapsed, skipped));
+    }
+}
@@ -0,0 +1,218 @@
+package km.tool.kmtuner.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each stage of the pitch-detection pipeline, per analysis frame.
+ *
+ * The stages work in place, so the benchmarks that destroy their input
+ * (fft, acf, nsdf) first restore it from a prepared copy; {@link #copyInput()}
+ * measures that copy alone so it can be subtracted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PitchAnalyzerBenchmark
+{
+    private static final int SAMPLING_RATE = 44100;
+
+    /** 110 Hz (open A string) with a few harmonics, like a plucked string. */
+    private static final double TONE_HZ = 110.0;
+
+    @Param({"1024", "2048", "4096", "8192", "16384"})
+    public int windowSize;
+
+    private PitchAnalyzer analyzer;
+    private PitchAnalyzer trackingAnalyzer;
+    private PitchAnalyzer rangeAnalyzer;
+    private FloatPitchAnalyzer floatAnalyzer;
+    private StrumAnalyzer strumAnalyzer;
+    private StringReading[] strumReadings;
+    private FFTPlan plan;
+    private PitchData pitchData;
+    private SampleRingBuffer ring;
+    private SampleRingBuffer directRing;  // same samples in a direct ByteBuffer (Tuner's direct capture)
+
+    private short[] samples;   // raw PCM input (windowSize / 2 samples are analyzed)
+    private double[] input;    // samples cast to double and zero padded
+    private double[] nsdf;     // result of nsdf() for peakPicking()
+    private double[] re;
+    private double[] im;
+
+    @Setup
+    public void setUp()
+    {
+        analyzer = new PitchAnalyzer(windowSize);
+        floatAnalyzer = new FloatPitchAnalyzer(windowSize);
+        trackingAnalyzer = new PitchAnalyzer(windowSize);
+        trackingAnalyzer.setTracking(true, 0.75);
+        rangeAnalyzer = new PitchAnalyzer(windowSize);
+        rangeAnalyzer.setPitchRange(69.3, 1318.5);  // what the tuner searches in standard tuning
+
+        NoteClassifier classifier = new NoteClassifier();
+        double[] target_hz = new double[Tuning.STANDARD.stringCount()];
+        strumReadings = new StringReading[target_hz.length];
+        for(int i = 0; i < target_hz.length; i++)
+        {
+            target_hz[i] = classifier.noteHz(Tuning.STANDARD.note(i));
+            strumReadings[i] = new StringReading();
+        }
+        strumAnalyzer = new StrumAnalyzer(windowSize, SAMPLING_RATE, target_hz);
+        plan = FFTPlan.get(windowSize);
+        pitchData = new PitchData();
+
+        samples = new short[windowSize];
+        input = new double[windowSize];
+        for(int i = 0; i < windowSize / 2; i++)
+        {
+            double t = (double) i / SAMPLING_RATE;
+            double x = 0.5 * Math.sin(2.0 * Math.PI * TONE_HZ * t)
+                    + 0.25 * Math.sin(2.0 * Math.PI * 2 * TONE_HZ * t + 0.4)
+                    + 0.125 * Math.sin(2.0 * Math.PI * 3 * TONE_HZ * t + 1.1);
+            samples[i] = (short) (x * 0.3 * Short.MAX_VALUE);
+            input[i] = samples[i];
+        }
+
+        ring = new SampleRingBuffer(windowSize);
+        ring.write(samples, 0, windowSize / 2);
+        directRing = SampleRingBuffer.allocateDirect(windowSize, 512, 1);
+        directRing.write(samples, 0, windowSize / 2);
+
+        re = new double[windowSize];
+        im = new double[windowSize];
+
+        nsdf = new double[windowSize];
+        System.arraycopy(input, 0, nsdf, 0, windowSize);
+        analyzer.nsdf(nsdf, new double[windowSize]);
+
+        /** Lock the tracker on to the tone so every invocation takes the narrow search. */
+        trackingAnalyzer.getExactPitch_hz(ring, pitchData);
+    }
+
+    private void restoreInput()
+    {
+        System.arraycopy(input, 0, re, 0, windowSize);
+        Arrays.fill(im, 0.0);
+    }
+
+    @Benchmark
+    public double[] copyInput()
+    {
+        restoreInput();
+        return re;
+    }
+
+    @Benchmark
+    public double[] fft()
+    {
+        restoreInput();
+        plan.transform(re, im, true);
+        return re;
+    }
+
+    @Benchmark
+    public double[] realFft()
+    {
+        restoreInput();
+        plan.realForward(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public double[] acf()
+    {
+        restoreInput();
+        analyzer.acf(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public double[] nsdf()
+    {
+        restoreInput();
+        analyzer.nsdf(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public int peakPicking()
+    {
+        return analyzer.peakPicking(nsdf);
+    }
+
+    @Benchmark
+    public PitchData getExactPitch_hz()
+    {
+        analyzer.getExactPitch_hz(samples, pitchData);
+        return pitchData;
+    }
+
+    @Benchmark
+    public PitchData getExactPitch_hz_ring()
+    {
+        analyzer.getExactPitch_hz(ring, pitchData);
+        return pitchData;
+    }
+
+    /** Reads the window through the ShortBuffer view of a direct ring; compare with getExactPitch_hz_ring. */
+    @Benchmark
+    public PitchData getExactPitch_hz_ring_direct()
+    {
+        analyzer.getExactPitch_hz(directRing, pitchData);
+        return pitchData;
+    }
+
+    /** Full search limited to the guitar range; lags outside it are not normalized. */
+    @Benchmark
+    public PitchData getExactPitch_hz_ring_range()
+    {
+        rangeAnalyzer.getExactPitch_hz(ring, pitchData);
+        return pitchData;
+    }
+
+    /** Steady tone: searches only a semitone around the previous period, by direct correlation. */
+    @Benchmark
+    public PitchData getExactPitch_hz_ring_tracking()
+    {
+        trackingAnalyzer.getExactPitch_hz(ring, pitchData);
+        return pitchData;
+    }
+
+    @Benchmark
+    public PitchData getExactPitch_hz_float()
+    {
+        floatAnalyzer.getExactPitch_hz(samples, pitchData);
+        return pitchData;
+    }
+
+    @Benchmark
+    public PitchData getExactPitch_hz_ring_float()
+    {
+        floatAnalyzer.getExactPitch_hz(ring, pitchData);
+        return pitchData;
+    }
+
+    /** All six strings from one frame; compare with getExactPitch_hz_ring. */
+    @Benchmark
+    public StringReading[] strum()
+    {
+        strumAnalyzer.analyze(ring, strumReadings);
+        return strumReadings;
+    }
+}
@@ -0,0 +1,73 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * Compares the single- and double-precision analyzers on synthetic tones.
+ *
+ * For every open-string target and a few detuned neighbours it prints the
+ * pitch found by each precision, their difference in cents and the largest
+ * clarity difference. Run with {@code ./gradlew :bench:comparePrecision}.
+ */
+public class PrecisionComparison
+{
+    private static final int SAMPLING_RATE = 44100;
+    private static final int WINDOW_SIZE = 4096;
+
+    private static final double[] DETUNE_CENTS = {-30, -5, 0, 5, 30};
+
+    public static void main(String[] args)
+    {
+        PitchDetector double_analyzer = PitchDetector.Precision.DOUBLE.newDetector(WINDOW_SIZE);
+        PitchDetector float_analyzer = PitchDetector.Precision.FLOAT.newDetector(WINDOW_SIZE);
+        PitchData double_data = new PitchData();
+        PitchData float_data = new PitchData();
+
+        short[] samples = new short[WINDOW_SIZE];
+
+        double max_cents = 0;
+        double max_clarity = 0;
+
+        System.out.println(String.format("%10s %12s %12s %10s %10s",
+                "tone [Hz]", "double [Hz]", "float [Hz]", "diff [ct]", "clarity"));
+
+        for(GuitarPitch target : GuitarPitch.values())
+        {
+            if(target == GuitarPitch.OFF)
+                continue;
+
+            for(double cents : DETUNE_CENTS)
+            {
+                double hz = target.hz() * Math.pow(2.0, cents / 1200.0);
+                pluckedString(hz, samples);
+
+                double_analyzer.getExactPitch_hz(samples, double_data);
+                float_analyzer.getExactPitch_hz(samples, float_data);
+
+                double diff_cents = 1200.0 * Math.log(float_data.getPitch() / double_data.getPitch()) / Math.log(2.0);
+                double diff_clarity = Math.abs(float_data.getClarity() - double_data.getClarity());
+
+                max_cents = Math.max(max_cents, Math.abs(diff_cents));
+                max_clarity = Math.max(max_clarity, diff_clarity);
+
+                System.out.println(String.format("%10.2f %12.4f %12.4f %10.4f %10.2e",
+                        hz, double_data.getPitch(), float_data.getPitch(), diff_cents, diff_clarity));
+            }
+        }
+
+        System.out.println(String.format("max |diff|: %.4f cents, clarity %.2e", max_cents, max_clarity));
+    }
+
+    /** A decaying tone with a few harmonics at about -10 dBFS. */
+    private static void pluckedString(double hz, short[] output)
+    {
+        double amplitude = 0.3 * (double) Short.MAX_VALUE;
+
+        for(int i = 0; i < output.length; i++)
+        {
+            double t = (double) i / SAMPLING_RATE;
+            double x = 0.6 * Math.sin(2.0 * Math.PI * hz * t)
+                    + 0.3 * Math.sin(2.0 * Math.PI * 2 * hz * t + 0.5)
+                    + 0.1 * Math.sin(2.0 * Math.PI * 3 * hz * t + 1.3);
+            output[i] = (short) (amplitude * Math.exp(-2.0 * t) * x);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 直前に検出したピッチに合わせて処理窓サイズを切り替える解析器
+ * 処理窓サイズは低音弦(6弦 82.4Hz)に合わせる必要があるが，高音弦ではその数分の1で足りるため
+ * 基本周期の数周期分(PERIODS)が入る最小の処理窓で解析し，計算量と遅延を減らす
+ * ピッチを見失った場合や，一定フレーム毎(オクターブ誤りの確認)には最大の処理窓で解析し直す
+ */
+public class AdaptivePitchDetector implements PitchDetector
+{
+    // 入力(処理窓サイズ / 2)に収める基本周期の数
+    private static final int PERIODS = 4;
+
+    // 弦が低めに外れていても周期が収まるように，全音分低い周波数を基準に処理窓を決める
+    private static final double LOW_MARGIN = Math.pow(2.0, -2.0 / 12.0);
+
+    // 小さな処理窓を使い続ける最大フレーム数(この後は最大の処理窓で確認する)
+    private static final int RECHECK_INTERVAL = 8;
+
+    private final PitchDetector[] detectors; // detectors[k]の処理窓サイズは minWindowSize << k
+    private final int minWindowSize;
+    private final int samplingRate;
+    private final double clarityThreshold;
+
+    private int current;          // 次のフレームで使う解析器のインデックス
+    private int framesSinceFull;  // 最後に最大の処理窓で解析してからのフレーム数
+
+    public AdaptivePitchDetector(int min_window_size,
+                                 int max_window_size,
+                                 double clarity_threshold,
+                                 Precision precision)
+    {
+        this(min_window_size, max_window_size, PitchAnalyzer.DEFAULT_SAMPLING_RATE,
+                clarity_threshold, precision);
+    }
+
+    public AdaptivePitchDetector(int min_window_size,
+                                 int max_window_size,
+                                 int sampling_rate,
+                                 double clarity_threshold,
+                                 Precision precision)
+    {
+        if(min_window_size > max_window_size)
+        {
+            throw new IllegalArgumentException(
+                    "min_window_size " + min_window_size + " > max_window_size " + max_window_size);
+        }
+
+        int count = Integer.numberOfTrailingZeros(max_window_size / min_window_size) + 1;
+        detectors = new PitchDetector[count];
+        for(int k = 0; k < count; k++)
+        {
+            detectors[k] = precision.newDetector(min_window_size << k, sampling_rate);
+        }
+
+        minWindowSize = min_window_size;
+        samplingRate = sampling_rate;
+        clarityThreshold = clarity_threshold;
+        current = count - 1;
+    }
+
+    // 検出できなかったフレームではClarityを0にする
+    @Override
+    public void getExactPitch_hz(short[] audio_buffer, PitchData pitchData)
+    {
+        int k = select();
+        pitchData.setClarity(0);
+        detectors[k].getExactPitch_hz(audio_buffer, pitchData);
+        update(k, pitchData);
+    }
+
+    // 検出できなかったフレームではClarityを0にする
+    @Override
+    public void getExactPitch_hz(SampleRingBuffer ring, PitchData pitchData)
+    {
+        int k = select();
+        pitchData.setClarity(0);
+        detectors[k].getExactPitch_hz(ring, pitchData);
+        update(k, pitchData);
+    }
+
+    // 処理窓毎に前回の周期を持つため，使われていなかった解析器は古い周期から追跡を始める
+    // (外れていればClarityの低下・オクターブの確認で全範囲の探索に戻る)
+    @Override
+    public void setTracking(boolean tracking, double clarity_threshold)
+    {
+        for(PitchDetector detector : detectors)
+        {
+            detector.setTracking(tracking, clarity_threshold);
+        }
+    }
+
+    // 小さい処理窓では，範囲のうちその処理窓で検出できる部分だけを探索する
+    @Override
+    public void setPitchRange(double min_hz, double max_hz)
+    {
+        for(PitchDetector detector : detectors)
+        {
+            detector.setPitchRange(min_hz, max_hz);
+        }
+    }
+
+    // 最大の処理窓での入力サンプル数(小さい処理窓では最新の一部だけを使う)
+    @Override
+    public int inputLength()
+    {
+        return detectors[detectors.length - 1].inputLength();
+    }
+
+    // 次のフレームで使われる処理窓サイズ
+    public int currentWindowSize()
+    {
+        return minWindowSize << current;
+    }
+
+    private int select()
+    {
+        if(framesSinceFull >= RECHECK_INTERVAL)
+        {
+            return detectors.length - 1;
+        }
+        return current;
+    }
+
+    private void update(int used, PitchData pitchData)
+    {
+        int full = detectors.length - 1;
+
+        if(used == full)
+        {
+            framesSinceFull = 0;
+        }
+        else
+        {
+            framesSinceFull++;
+        }
+
+        if(pitchData.getClarity() < clarityThreshold || pitchData.getPitch() <= 0)
+        {
+            // ピッチを見失ったら，どの弦でも検出できる最大の処理窓に戻す
+            current = full;
+            return;
+        }
+
+        // 基本周期PERIODS個分が入力に収まる最小の処理窓を選ぶ
+        double period = samplingRate / (pitchData.getPitch() * LOW_MARGIN);
+        int k = 0;
+        while(k < full && (detectors[k].inputLength() < PERIODS * period))
+        {
+            k++;
+        }
+        current = k;
+    }
+}
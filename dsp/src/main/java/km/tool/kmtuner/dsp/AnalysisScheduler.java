@@ -0,0 +1,188 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 新しいサンプルを書き込む毎に，そのフレームを解析するかどうかを決めるスケジューラ
+ * 無音(ノイズゲート)の間は解析せず，同じ音高が続いている間は解析の間隔を広げる
+ * 弾き始め(オンセット)を検出したら直ちに毎フレームの解析に戻す
+ * 判定に使う区間のエネルギーはリングバッファの累積エネルギーの差分から求めるため，ほぼ計算量がかからない
+ */
+public final class AnalysisScheduler
+{
+    public enum Decision
+    {
+        ANALYZE,        // 解析する
+        SKIP_SILENT,    // 無音のため解析しない
+        SKIP_STABLE     // 音高が安定しているため今回は解析しない
+    }
+
+    // ノイズゲート(dBFS)．開く閾値と閉じる閾値に差を付け，減衰中の音が細切れにならないようにする
+    private static final double GATE_OPEN_DBFS = -50.0;   // 区間のRMSがこれを超えたら開く
+    private static final double GATE_PEAK_DBFS = -40.0;   // 区間のピークがこれを超えても開く(アタックの検出)
+    private static final double GATE_CLOSE_DBFS = -56.0;  // 区間のRMSがこれを下回り続けたら閉じる
+    private static final int GATE_HOLD = 8;               // 閉じるまでに下回り続ける必要がある区間の数
+
+    // オンセット：区間のエネルギーが直前までの包絡線のONSET_RATIO倍(+6dB)を超えたとき
+    private static final double ONSET_RATIO = 4.0;
+    private static final double ENVELOPE_ALPHA = 0.2;     // 包絡線(区間の平均2乗値の指数移動平均)の更新率
+
+    // 安定：直前の結果からSTABLE_CENTS以内の結果がSTABLE_FRAMES回続く毎に解析の間隔を2倍にする(最大MAX_INTERVAL)
+    // (保持した音でも放物線補完の誤差でフレーム毎に数セント揺れるため，それより広く取る)
+    private static final double STABLE_CENTS = 10.0;
+    private static final int STABLE_FRAMES = 4;
+    private static final int MAX_INTERVAL = 8;
+
+    private final double clarityThreshold;
+    private final double gateOpen;     // 平均2乗値での閾値
+    private final double gateClose;
+    private final int gatePeak;        // ピーク値での閾値
+
+    private long lastWritten = 0;      // 前回のnext()の時点での書き込み総数
+    private boolean gateIsOpen = false;
+    private int quietCount = 0;        // 閉じる閾値を下回り続けている区間の数
+    private double envelope = 0;
+
+    private int interval = 1;          // 解析の間隔(区間数)
+    private int sinceAnalysis = 0;     // 最後に解析してからの区間数
+    private int stableCount = 0;
+    private double lastPitch = 0;
+
+    /* 統計 */
+    private long analyzed = 0;
+    private long skippedSilent = 0;
+    private long skippedStable = 0;
+
+    public AnalysisScheduler(double clarity_threshold)
+    {
+        clarityThreshold = clarity_threshold;
+        gateOpen = meanSquare(GATE_OPEN_DBFS);
+        gateClose = meanSquare(GATE_CLOSE_DBFS);
+        gatePeak = (int) (Short.MAX_VALUE * Math.pow(10.0, GATE_PEAK_DBFS / 20.0));
+    }
+
+    // ringに前回の呼び出し以降に書き込まれた区間を見て，今回解析するかを返す
+    public Decision next(SampleRingBuffer ring)
+    {
+        long written = ring.written();
+        long count = Math.min(written - lastWritten, ring.capacity() - 1L);
+        count = Math.min(count, ring.available());
+        lastWritten = written;
+
+        if(count > 0)
+        {
+            double mean_square = (ring.cumulativeEnergy(written) - ring.cumulativeEnergy(written - count))
+                    / (double) count;
+
+            boolean onset = updateGate(mean_square, ring.peakOfLatest((int) count))
+                    && mean_square > ONSET_RATIO * envelope;
+            envelope += ENVELOPE_ALPHA * (mean_square - envelope);
+
+            if(onset)
+            {
+                // 弾き始めは直ちに毎区間の解析に戻す
+                interval = 1;
+                stableCount = 0;
+                sinceAnalysis = interval;
+            }
+        }
+
+        if(!gateIsOpen)
+        {
+            skippedSilent++;
+            return Decision.SKIP_SILENT;
+        }
+
+        if(++sinceAnalysis < interval)
+        {
+            skippedStable++;
+            return Decision.SKIP_STABLE;
+        }
+
+        sinceAnalysis = 0;
+        analyzed++;
+        return Decision.ANALYZE;
+    }
+
+    // next()がANALYZEを返したフレームの解析結果を渡す(安定判定に使う)
+    public void update(PitchData pitchData)
+    {
+        double pitch = pitchData.getPitch();
+
+        boolean stable = pitchData.getClarity() >= clarityThreshold
+                && pitch > 0 && lastPitch > 0
+                && Math.abs(1200.0 * Math.log(pitch / lastPitch) / Math.log(2.0)) <= STABLE_CENTS;
+
+        if(stable)
+        {
+            if(++stableCount >= STABLE_FRAMES)
+            {
+                stableCount = 0;
+                interval = Math.min(interval * 2, MAX_INTERVAL);
+            }
+        }
+        else
+        {
+            stableCount = 0;
+            interval = 1;
+        }
+
+        lastPitch = (pitchData.getClarity() >= clarityThreshold) ? pitch : 0;
+    }
+
+    // ゲートが開いている(無音ではない)
+    public boolean isGateOpen()
+    {
+        return gateIsOpen;
+    }
+
+    public long analyzed()
+    {
+        return analyzed;
+    }
+
+    public long skippedSilent()
+    {
+        return skippedSilent;
+    }
+
+    public long skippedStable()
+    {
+        return skippedStable;
+    }
+
+    // ゲートの状態を更新し，開いているかを返す
+    private boolean updateGate(double mean_square, int peak)
+    {
+        if(mean_square > gateOpen || peak > gatePeak)
+        {
+            gateIsOpen = true;
+            quietCount = 0;
+        }
+        else if(mean_square < gateClose)
+        {
+            if(++quietCount >= GATE_HOLD)
+            {
+                gateIsOpen = false;
+            }
+        }
+        else
+        {
+            quietCount = 0;
+        }
+
+        if(!gateIsOpen)
+        {
+            // 無音の間は音高の履歴を捨てる
+            interval = 1;
+            stableCount = 0;
+            lastPitch = 0;
+        }
+
+        return gateIsOpen;
+    }
+
+    private static double meanSquare(double dbfs)
+    {
+        double rms = Short.MAX_VALUE * Math.pow(10.0, dbfs / 20.0);
+        return rms * rms;
+    }
+}
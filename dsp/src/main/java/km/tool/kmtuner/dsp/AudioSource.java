@@ -0,0 +1,32 @@
+package km.tool.kmtuner.dsp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 解析ループへの16bit PCM(モノラル)の入力元
+ * マイクの他に，合成信号や録音済みデータの再生を同じループに流せるようにする
+ * 実時間で入力されない(isLive()がfalseの)入力元は待ち合わせをせず，読める限り速く返す
+ */
+public interface AudioSource
+{
+    // read()の戻り値：入力が終わった(以降も読めない)
+    int END_OF_STREAM = -1;
+
+    int sampleRate();
+
+    // true: マイクのように実時間で入力される(read()は入力を待つ)
+    boolean isLive();
+
+    void start();
+
+    // 最大lengthサンプルをbuffer[offset]から書き込み，書き込んだサンプル数を返す
+    // 今は読めない場合は0以下，入力が終わった場合はEND_OF_STREAMを返す
+    int read(short[] buffer, int offset, int length);
+
+    // read()のダイレクトバッファ版(AudioRecord.read(ByteBuffer, int)と同様に，Java配列を経由せずに書き込む)
+    // 最大lengthサンプルをbufferのpositionからネイティブのバイト順で書き込み，書き込んだサンプル数を返す
+    // bufferのpositionとlimitは変えない．戻り値はread()と同じ
+    int read(ByteBuffer buffer, int length);
+
+    void release();
+}
@@ -0,0 +1,252 @@
+package km.tool.kmtuner.dsp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 録音スレッド(生産者1つ)から解析スレッド(消費者1つ)へサンプルのブロックを渡すキュー
+ * ブロックは生成時にまとめて確保し，ロックを使わずにインデックスの受け渡しだけで使い回す
+ * 生産者は空きが無い場合も待たない(録音を止めないため，呼び出し側でブロックを捨ててoverrun()を呼ぶ)
+ * 消費者は空の場合にparkして待ち，生産者のpublish()で起こされる
+ *
+ * ダイレクトバッファのブロック(SampleRingBuffer.directBlocks())を渡して作った場合は，
+ * 生産者はwriteDirectBlock()のブロックに書き込み，消費者はawaitBlock()で待ってから
+ * ブロックの中身ではなくサンプル数だけを受け取る(サンプルはリングバッファから直接読む)
+ * 読み終えたブロックもリングバッファの履歴として残すため，生産者は未読のブロックがlimit個になるまでしか書き込まない
+ */
+public final class BlockQueue
+{
+    private final short[][] blocks;        // 配列のブロック(ダイレクトバッファの場合はnull)
+    private final ByteBuffer[] directBlocks; // ダイレクトバッファのブロック(配列の場合はnull)
+    private final int[] lengths;     // 各ブロックに書き込まれたサンプル数
+    private final int mask;          // インデックスの剰余計算用(ブロック数 - 1)
+    private final int limit;         // 未読のまま置けるブロック数の上限
+
+    private volatile long head = 0;  // 書き込みを確定したブロックの総数(生産者のみ更新)
+    private volatile long tail = 0;  // 読み終えたブロックの総数(消費者のみ更新)
+    private volatile boolean closed = false;
+
+    private volatile Thread waiter = null; // 空のキューを待っている消費者
+
+    /* 統計(それぞれ1つのスレッドだけが更新する) */
+    private volatile long overruns = 0;   // 空きが無く捨てたブロック数(生産者)
+    private volatile long underruns = 0;  // 読もうとしたときに空だった回数(消費者)
+    private volatile long skipped = 0;    // 古くなったため読まずに捨てたブロック数(消費者)
+
+    // block_count: 2のべき乗に切り上げる
+    public BlockQueue(int block_count, int block_size)
+    {
+        int size = Integer.highestOneBit(Math.max(block_count, 1));
+        if(size < block_count)
+        {
+            size <<= 1;
+        }
+
+        blocks = new short[size][block_size];
+        directBlocks = null;
+        lengths = new int[size];
+        mask = size - 1;
+        limit = size;
+    }
+
+    // direct_blocks: 同じ大きさのブロック(個数は2のべき乗)
+    // limit: 未読のまま置けるブロック数(残りは読み終えた後もリングバッファの履歴として上書きしない)
+    public BlockQueue(ByteBuffer[] direct_blocks, int limit)
+    {
+        if(Integer.bitCount(direct_blocks.length) != 1 || limit < 1 || limit > direct_blocks.length)
+        {
+            throw new IllegalArgumentException(
+                    "blocks: " + direct_blocks.length + ", limit: " + limit);
+        }
+
+        blocks = null;
+        directBlocks = direct_blocks;
+        lengths = new int[direct_blocks.length];
+        mask = direct_blocks.length - 1;
+        this.limit = limit;
+    }
+
+    public boolean isDirect()
+    {
+        return directBlocks != null;
+    }
+
+    public int blockSize()
+    {
+        return (blocks != null) ? blocks[0].length : directBlocks[0].capacity() / 2;
+    }
+
+    public int capacity()
+    {
+        return limit;
+    }
+
+    // 読み出せるブロック数
+    public int available()
+    {
+        return (int) (head - tail);
+    }
+
+    /*---- 生産者側 ----*/
+
+    // 次に書き込むブロックを返す(空きが無ければnull)
+    public short[] writeBlock()
+    {
+        long h = head;
+        if(h - tail >= limit)
+        {
+            return null;
+        }
+        return blocks[(int) h & mask];
+    }
+
+    // writeBlock()のダイレクトバッファ版
+    // 最後のブロック(close()の直前)以外は，ブロックを埋めてからpublish()すること(リングバッファ上でサンプルが連続するため)
+    public ByteBuffer writeDirectBlock()
+    {
+        long h = head;
+        if(h - tail >= limit)
+        {
+            return null;
+        }
+        return directBlocks[(int) h & mask];
+    }
+
+    // writeBlock()で得たブロックにlengthサンプル書き込んだことを確定する
+    public void publish(int length)
+    {
+        long h = head;
+        lengths[(int) h & mask] = length;
+        head = h + 1;
+
+        Thread thread = waiter;
+        if(thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // 空きが無かったためブロックを捨てたことを記録する
+    public void overrun()
+    {
+        overruns++;
+    }
+
+    // 入力の終わり(以降にpublish()しない)を知らせる
+    public void close()
+    {
+        closed = true;
+
+        Thread thread = waiter;
+        if(thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /*---- 消費者側 ----*/
+
+    // 最も古い未読のブロックを返す(読み終えたらrelease()を呼ぶ)
+    // 空の場合は最大timeout_nanosだけ待ち，それでも空か，閉じられて空ならnullを返す
+    public short[] readBlock(long timeout_nanos)
+    {
+        return awaitBlock(timeout_nanos) ? blocks[(int) tail & mask] : null;
+    }
+
+    // 未読のブロックが届くまで最大timeout_nanosだけ待ち，届いていればtrueを返す
+    // (ダイレクトバッファの場合はreadBlock()の代わりに使い，readLength()とrelease()を続けて呼ぶ)
+    public boolean awaitBlock(long timeout_nanos)
+    {
+        if(head == tail)
+        {
+            underruns++;
+
+            long deadline = System.nanoTime() + timeout_nanos;
+            waiter = Thread.currentThread();
+            try
+            {
+                // publish()がwaiterを読む前にheadを確認し直すため，起こし損ねることはない
+                while(head == tail && !closed)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0)
+                    {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            finally
+            {
+                waiter = null;
+            }
+
+            if(head == tail)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // 直前のreadBlock()で得たブロックのサンプル数
+    public int readLength()
+    {
+        return lengths[(int) tail & mask];
+    }
+
+    // readBlock()で得たブロックを返却する
+    public void release()
+    {
+        tail = tail + 1;
+    }
+
+    // 未読のブロックのうち最新のkeep個より古いものを読まずに捨て，捨てた数を返す
+    public int skipStale(int keep)
+    {
+        int stale = staleBlocks(keep);
+        skip(stale);
+        return stale;
+    }
+
+    // 未読のブロックのうち最新のkeep個より古いものの数
+    public int staleBlocks(int keep)
+    {
+        return Math.max(available() - keep, 0);
+    }
+
+    // 最も古い未読のブロックからcount個を読まずに捨てる(countは未読のブロック数以下)
+    // ダイレクトバッファの場合は，捨てる前にその分のサンプルをリングバッファにcommit()しておく
+    public void skip(int count)
+    {
+        if(count <= 0)
+        {
+            return;
+        }
+
+        tail = tail + count;
+        skipped += count;
+    }
+
+    // close()された(以降ブロックが増えない)
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    public long overruns()
+    {
+        return overruns;
+    }
+
+    public long underruns()
+    {
+        return underruns;
+    }
+
+    public long skipped()
+    {
+        return skipped;
+    }
+}
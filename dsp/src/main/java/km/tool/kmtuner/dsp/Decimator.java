@@ -0,0 +1,128 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 解析前にサンプリングレートを1/factorに落とす前処理
+ * ギターの基本周波数はいずれも1.4kHz以下のため，折り返し防止のローパスFIRを掛けてから間引き，
+ * 同じ時間長の信号をfactor分の1のサイズのFFTで解析できるようにする
+ * 録音バッファを少しずつ処理できるよう，フィルタの状態はprocess()の呼び出しをまたいで保持する
+ */
+public final class Decimator
+{
+    // 通過域の上限(間引き後のナイキスト周波数に対する比)．ここからナイキスト周波数までが遷移帯域
+    static final double PASSBAND = 0.8;
+
+    // ハミング窓のフィルタの遷移帯域幅 ≒ HAMMING_WIDTH / タップ数 (入力のサンプリング周波数で正規化)
+    static final double HAMMING_WIDTH = 3.3;
+
+    private final int factor;
+    private final double[] coefficients; // FIRフィルタ係数(直流ゲイン1)
+    private final double[] history;     // 遅延線(同じ値を2か所に書き込み，剰余計算なしで畳み込む)
+    private int pos = 0;                 // 遅延線の書き込み位置
+    private int phase = 0;               // 次の出力までの入力サンプル数のカウンタ
+
+    // taps: フィルタのタップ数(奇数を推奨．多いほど遮断特性が急になる)
+    public Decimator(int factor, int taps)
+    {
+        if(factor < 1 || taps < 1)
+        {
+            throw new IllegalArgumentException("factor: " + factor + ", taps: " + taps);
+        }
+
+        this.factor = factor;
+
+        /* 窓関数法(ハミング窓)でローパスフィルタを設計する           *
+         * 遮断周波数は遷移帯域の中央(間引き後のナイキスト周波数の90%) */
+        coefficients = new double[taps];
+        double cutoff = (1 + PASSBAND) / 2 * 0.5 / factor;  // 入力のサンプリング周波数で正規化した遮断周波数
+        double center = (taps - 1) / 2.0;
+        double sum = 0;
+        for(int n = 0; n < taps; n++)
+        {
+            double x = n - center;
+            double sinc = (x == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double window = (taps == 1) ? 1 : 0.54 - 0.46 * Math.cos(2 * Math.PI * n / (taps - 1));
+            coefficients[n] = sinc * window;
+            sum += coefficients[n];
+        }
+        for(int n = 0; n < taps; n++)
+        {
+            coefficients[n] /= sum;
+        }
+
+        history = new double[2 * taps];
+    }
+
+    // 間引き後のナイキスト周波数以上を阻止域とするのに必要なタップ数のフィルタを使う
+    public Decimator(int factor)
+    {
+        this(factor, taps(factor));
+    }
+
+    // 遷移帯域(通過域の上限～間引き後のナイキスト周波数)に収まる最小のタップ数(奇数)
+    // 間引き率4なら133タップ(阻止域の減衰はハミング窓で約53dB)
+    static int taps(int factor)
+    {
+        double transition = (1 - PASSBAND) * 0.5 / factor;
+        return (int) Math.ceil(HAMMING_WIDTH / transition) | 1;
+    }
+
+    public int factor()
+    {
+        return factor;
+    }
+
+    // lengthサンプルの入力に対して出力され得る最大のサンプル数
+    public int maxOutputLength(int length)
+    {
+        return (length + factor - 1) / factor;
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < history.length; i++)
+        {
+            history[i] = 0;
+        }
+        pos = 0;
+        phase = 0;
+    }
+
+    // inのlengthサンプルをフィルタに通して間引き，outの先頭から書き込む
+    // 戻り値は出力したサンプル数
+    public int process(short[] in, int offset, int length, short[] out)
+    {
+        int taps = coefficients.length;
+        int count = 0;
+
+        for(int i = 0; i < length; i++)
+        {
+            // 遅延線に入力を追加
+            pos = (pos == 0) ? taps - 1 : pos - 1;
+            history[pos] = in[offset + i];
+            history[pos + taps] = in[offset + i];
+
+            // factorサンプル毎に1サンプルだけ畳み込みを計算して出力する
+            if(++phase < factor)
+            {
+                continue;
+            }
+            phase = 0;
+
+            double y = 0;
+            for(int n = 0; n < taps; n++)
+            {
+                y += coefficients[n] * history[pos + n];
+            }
+
+            // 16bitの範囲に丸める
+            long sample = Math.round(y);
+            if(sample > Short.MAX_VALUE)
+                sample = Short.MAX_VALUE;
+            else if(sample < Short.MIN_VALUE)
+                sample = Short.MIN_VALUE;
+            out[count++] = (short) sample;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,453 @@
+package km.tool.kmtuner.dsp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FFTの実行計画(回転因子とビット反転テーブル)を保持するクラス
+ * 窓サイズごとに一度だけ生成し，以降は使い回す
+ */
+final class FFTPlan
+{
+    // 窓サイズ毎のキャッシュ
+    private static final Map<Integer, FFTPlan> CACHE = new HashMap<Integer, FFTPlan>();
+
+    private final int size;           // FFT窓サイズ(2のべき乗)
+    private final int numberOfStage;  // FFTの段数(log2(size))
+    private final double[] cos;       // 回転因子(実部) cos(2πr/N), r = 0～N/2-1
+    private final double[] sin;       // 回転因子(虚部) sin(2πr/N), r = 0～N/2-1
+    private final float[] cosFloat;   // 単精度版の回転因子(実部)
+    private final float[] sinFloat;   // 単精度版の回転因子(虚部)
+    private final int[] bitReverse;   // 並べ替え用インデックス
+    private final FFTPlan halfPlan;   // 実数FFT用のN/2点複素FFT計画(size < 4のときはnull．1点のFFTは恒等変換)
+
+    // 窓サイズに対応する計画を取得する(無ければ生成してキャッシュする)
+    public static FFTPlan get(int size)
+    {
+        synchronized (CACHE)
+        {
+            FFTPlan plan = CACHE.get(size);
+            if(plan == null)
+            {
+                plan = new FFTPlan(size);
+                CACHE.put(size, plan);
+            }
+            return plan;
+        }
+    }
+
+    private FFTPlan(int size)
+    {
+        if(size < 2 || Integer.bitCount(size) != 1)
+        {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+
+        this.size = size;
+        this.numberOfStage = Integer.numberOfTrailingZeros(size);
+
+        /* 回転因子テーブルを作成 */
+        int half = size >> 1;
+        cos = new double[half];
+        sin = new double[half];
+        cosFloat = new float[half];
+        sinFloat = new float[half];
+        for(int r = 0; r < half; r++)
+        {
+            cos[r] = Math.cos((2.0 * Math.PI * r) / size);
+            sin[r] = Math.sin((2.0 * Math.PI * r) / size);
+            cosFloat[r] = (float) cos[r];
+            sinFloat[r] = (float) sin[r];
+        }
+
+        /* インデックス用配列の初期化 */
+        bitReverse = new int[size];
+        for(int stage = 1; stage <= numberOfStage; stage++)
+        {
+            int offset = 1 << (stage - 1);
+            for(int i = 0; i < offset; i++)
+            {
+                bitReverse[offset + i] = bitReverse[i] + (1 << (numberOfStage - stage));
+            }
+        }
+
+        halfPlan = (size >= 4) ? FFTPlan.get(half) : null;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // FFTまたはIFFTを行うメソッド(in-place)
+    public void transform(
+            double [] w_re,   // 入力信号実部(length = FFT窓サイズ)
+            double [] w_im,   // 入力信号虚部(length = FFT窓サイズ)
+            boolean direction // FFT,IFFTを選択するための制御変数(true: FFT, false: IFFT)
+    )
+    {
+        int n, m, r;
+        double a_real, a_imag;
+        double b_real, b_imag;
+        double c_real, c_imag;
+        double d_real, d_imag;
+        double real, imag;
+
+        // IFFT時は回転因子の虚部の符号を反転する
+        double sign = direction ? -1.0 : 1.0;
+
+        /* バタフライ計算 */
+        for(int stage = 1; stage <= numberOfStage; stage++)
+        {
+            int groups = 1 << (stage - 1);               // グループ数
+            int half   = 1 << (numberOfStage - stage);   // グループ内のバタフライ数
+            int span   = half << 1;                      // グループの幅
+
+            if(stage < numberOfStage)
+            {
+                for(int i = 0; i < groups; i++)
+                {
+                    int base = span * i;
+                    for(int j = 0; j < half; j++)
+                    {
+                        n = base + j;
+                        m = n + half;
+                        r = j << (stage - 1);
+                        a_real = w_re[n];
+                        a_imag = w_im[n];
+                        b_real = w_re[m];
+                        b_imag = w_im[m];
+                        c_real = cos[r];
+                        c_imag = sign * sin[r];
+                        d_real = a_real - b_real;
+                        d_imag = a_imag - b_imag;
+                        w_re[n] = a_real + b_real;
+                        w_im[n] = a_imag + b_imag;
+                        w_re[m] = d_real * c_real - d_imag * c_imag;
+                        w_im[m] = d_imag * c_real + d_real * c_imag;
+                    }
+                }
+            }
+            else
+            {
+                // 最終段の回転因子は常に1
+                for(n = 0; n < size; n += 2)
+                {
+                    m = n + 1;
+                    a_real = w_re[n];
+                    a_imag = w_im[n];
+                    b_real = w_re[m];
+                    b_imag = w_im[m];
+                    w_re[n] = a_real + b_real;
+                    w_im[n] = a_imag + b_imag;
+                    w_re[m] = a_real - b_real;
+                    w_im[m] = a_imag - b_imag;
+                }
+            }
+        }
+
+        /* インデックス並べ替え */
+        for(int k = 0; k < size; k++)
+        {
+            int idx = bitReverse[k];
+            if(idx > k)
+            {
+                real = w_re[idx];
+                imag = w_im[idx];
+                w_re[idx] = w_re[k];
+                w_im[idx] = w_im[k];
+                w_re[k] = real;
+                w_im[k] = imag;
+            }
+        }
+
+        if(!direction)
+        {
+            /* IFFT時の処理 *
+             * 1/Nで除算    */
+            double scale = 1.0 / size;
+            for (int i = 0; i < size; i++)
+            {
+                w_re[i] = w_re[i] * scale;
+                w_im[i] = w_im[i] * scale;
+            }
+        }
+    }
+
+    // 実数信号N点のFFTを行うメソッド(in-place)
+    // 入力：実信号x[0]～x[N-1]をN/2点の複素信号として詰めたもの
+    //       w_re[n] = x[2n], w_im[n] = x[2n+1] (n = 0～N/2-1)
+    // 出力：スペクトルX[0]～X[N/2-1](X[N/2]～X[N-1]は共役対称のため省略)
+    //       X[0]，X[N/2]はともに実数となるため，X[N/2]の実部をw_im[0]に格納する
+    public void realForward(double [] w_re, double [] w_im)
+    {
+        int half = size >> 1;
+        double zr_k, zi_k, zr_j, zi_j;
+        double er, ei, or, oi;
+        double tr, ti;
+
+        // N/2点の複素FFT
+        if(halfPlan != null)  // N = 2 のときは1点の(恒等)変換なので不要
+        {
+            halfPlan.transform(w_re, w_im, true);
+        }
+
+        /* k = 0 (直流成分とナイキスト成分) */
+        er = w_re[0];
+        or = w_im[0];
+        w_re[0] = er + or;
+        w_im[0] = er - or;
+
+        /* k と N/2-k を組にして偶数列・奇数列のスペクトルに分解し合成する */
+        for(int k = 1, j = half - 1; k <= j; k++, j--)
+        {
+            zr_k = w_re[k];
+            zi_k = w_im[k];
+            zr_j = w_re[j];
+            zi_j = w_im[j];
+
+            er = 0.5 * (zr_k + zr_j);  // 偶数列のスペクトル E[k]
+            ei = 0.5 * (zi_k - zi_j);
+            or = 0.5 * (zi_k + zi_j);  // 奇数列のスペクトル O[k]
+            oi = -0.5 * (zr_k - zr_j);
+
+            // W^k O[k] (W = exp(-2πi/N))
+            tr = cos[k] * or + sin[k] * oi;
+            ti = cos[k] * oi - sin[k] * or;
+
+            w_re[k] = er + tr;
+            w_im[k] = ei + ti;
+            w_re[j] = er - tr;
+            w_im[j] = ti - ei;
+        }
+    }
+
+    // realForward()の逆変換(in-place)
+    // 入力：realForward()と同じ形式のスペクトル
+    // 出力：w_re[n] = x[2n], w_im[n] = x[2n+1] (n = 0～N/2-1)
+    public void realInverse(double [] w_re, double [] w_im)
+    {
+        int half = size >> 1;
+        double xr_k, xi_k, xr_j, xi_j;
+        double er, ei, dr, di, or, oi;
+
+        /* k = 0 (直流成分とナイキスト成分) */
+        xr_k = w_re[0];
+        xr_j = w_im[0];
+        w_re[0] = 0.5 * (xr_k + xr_j);
+        w_im[0] = 0.5 * (xr_k - xr_j);
+
+        /* k と N/2-k を組にして偶数列・奇数列のスペクトルを復元する */
+        for(int k = 1, j = half - 1; k <= j; k++, j--)
+        {
+            xr_k = w_re[k];
+            xi_k = w_im[k];
+            xr_j = w_re[j];
+            xi_j = w_im[j];
+
+            er = 0.5 * (xr_k + xr_j);  // E[k] = (X[k] + conj(X[N/2-k])) / 2
+            ei = 0.5 * (xi_k - xi_j);
+            dr = 0.5 * (xr_k - xr_j);  // (X[k] - conj(X[N/2-k])) / 2
+            di = 0.5 * (xi_k + xi_j);
+
+            // O[k] = W^-k (X[k] - conj(X[N/2-k])) / 2
+            or = cos[k] * dr - sin[k] * di;
+            oi = cos[k] * di + sin[k] * dr;
+
+            // Z[k] = E[k] + i O[k], Z[N/2-k] = conj(E[k]) + i conj(O[k])
+            w_re[k] = er - oi;
+            w_im[k] = ei + or;
+            w_re[j] = er + oi;
+            w_im[j] = or - ei;
+        }
+
+        // N/2点の複素IFFT
+        if(halfPlan != null)  // N = 2 のときは1点の(恒等)変換なので不要
+        {
+            halfPlan.transform(w_re, w_im, false);
+        }
+    }
+
+    // transform()の単精度版
+    public void transform(
+            float [] w_re,    // 入力信号実部(length = FFT窓サイズ)
+            float [] w_im,    // 入力信号虚部(length = FFT窓サイズ)
+            boolean direction // FFT,IFFTを選択するための制御変数(true: FFT, false: IFFT)
+    )
+    {
+        int n, m, r;
+        float a_real, a_imag;
+        float b_real, b_imag;
+        float c_real, c_imag;
+        float d_real, d_imag;
+        float real, imag;
+
+        // IFFT時は回転因子の虚部の符号を反転する
+        float sign = direction ? -1.0f : 1.0f;
+
+        /* バタフライ計算 */
+        for(int stage = 1; stage <= numberOfStage; stage++)
+        {
+            int groups = 1 << (stage - 1);               // グループ数
+            int half   = 1 << (numberOfStage - stage);   // グループ内のバタフライ数
+            int span   = half << 1;                      // グループの幅
+
+            if(stage < numberOfStage)
+            {
+                for(int i = 0; i < groups; i++)
+                {
+                    int base = span * i;
+                    for(int j = 0; j < half; j++)
+                    {
+                        n = base + j;
+                        m = n + half;
+                        r = j << (stage - 1);
+                        a_real = w_re[n];
+                        a_imag = w_im[n];
+                        b_real = w_re[m];
+                        b_imag = w_im[m];
+                        c_real = cosFloat[r];
+                        c_imag = sign * sinFloat[r];
+                        d_real = a_real - b_real;
+                        d_imag = a_imag - b_imag;
+                        w_re[n] = a_real + b_real;
+                        w_im[n] = a_imag + b_imag;
+                        w_re[m] = d_real * c_real - d_imag * c_imag;
+                        w_im[m] = d_imag * c_real + d_real * c_imag;
+                    }
+                }
+            }
+            else
+            {
+                // 最終段の回転因子は常に1
+                for(n = 0; n < size; n += 2)
+                {
+                    m = n + 1;
+                    a_real = w_re[n];
+                    a_imag = w_im[n];
+                    b_real = w_re[m];
+                    b_imag = w_im[m];
+                    w_re[n] = a_real + b_real;
+                    w_im[n] = a_imag + b_imag;
+                    w_re[m] = a_real - b_real;
+                    w_im[m] = a_imag - b_imag;
+                }
+            }
+        }
+
+        /* インデックス並べ替え */
+        for(int k = 0; k < size; k++)
+        {
+            int idx = bitReverse[k];
+            if(idx > k)
+            {
+                real = w_re[idx];
+                imag = w_im[idx];
+                w_re[idx] = w_re[k];
+                w_im[idx] = w_im[k];
+                w_re[k] = real;
+                w_im[k] = imag;
+            }
+        }
+
+        if(!direction)
+        {
+            /* IFFT時の処理 *
+             * 1/Nで除算    */
+            float scale = 1.0f / size;
+            for (int i = 0; i < size; i++)
+            {
+                w_re[i] = w_re[i] * scale;
+                w_im[i] = w_im[i] * scale;
+            }
+        }
+    }
+
+    // realForward()の単精度版
+    public void realForward(float [] w_re, float [] w_im)
+    {
+        int half = size >> 1;
+        float zr_k, zi_k, zr_j, zi_j;
+        float er, ei, or, oi;
+        float tr, ti;
+
+        // N/2点の複素FFT
+        if(halfPlan != null)  // N = 2 のときは1点の(恒等)変換なので不要
+        {
+            halfPlan.transform(w_re, w_im, true);
+        }
+
+        /* k = 0 (直流成分とナイキスト成分) */
+        er = w_re[0];
+        or = w_im[0];
+        w_re[0] = er + or;
+        w_im[0] = er - or;
+
+        /* k と N/2-k を組にして偶数列・奇数列のスペクトルに分解し合成する */
+        for(int k = 1, j = half - 1; k <= j; k++, j--)
+        {
+            zr_k = w_re[k];
+            zi_k = w_im[k];
+            zr_j = w_re[j];
+            zi_j = w_im[j];
+
+            er = 0.5f * (zr_k + zr_j);  // 偶数列のスペクトル E[k]
+            ei = 0.5f * (zi_k - zi_j);
+            or = 0.5f * (zi_k + zi_j);  // 奇数列のスペクトル O[k]
+            oi = -0.5f * (zr_k - zr_j);
+
+            // W^k O[k] (W = exp(-2πi/N))
+            tr = cosFloat[k] * or + sinFloat[k] * oi;
+            ti = cosFloat[k] * oi - sinFloat[k] * or;
+
+            w_re[k] = er + tr;
+            w_im[k] = ei + ti;
+            w_re[j] = er - tr;
+            w_im[j] = ti - ei;
+        }
+    }
+
+    // realInverse()の単精度版
+    public void realInverse(float [] w_re, float [] w_im)
+    {
+        int half = size >> 1;
+        float xr_k, xi_k, xr_j, xi_j;
+        float er, ei, dr, di, or, oi;
+
+        /* k = 0 (直流成分とナイキスト成分) */
+        xr_k = w_re[0];
+        xr_j = w_im[0];
+        w_re[0] = 0.5f * (xr_k + xr_j);
+        w_im[0] = 0.5f * (xr_k - xr_j);
+
+        /* k と N/2-k を組にして偶数列・奇数列のスペクトルを復元する */
+        for(int k = 1, j = half - 1; k <= j; k++, j--)
+        {
+            xr_k = w_re[k];
+            xi_k = w_im[k];
+            xr_j = w_re[j];
+            xi_j = w_im[j];
+
+            er = 0.5f * (xr_k + xr_j);  // E[k] = (X[k] + conj(X[N/2-k])) / 2
+            ei = 0.5f * (xi_k - xi_j);
+            dr = 0.5f * (xr_k - xr_j);  // (X[k] - conj(X[N/2-k])) / 2
+            di = 0.5f * (xi_k + xi_j);
+
+            // O[k] = W^-k (X[k] - conj(X[N/2-k])) / 2
+            or = cosFloat[k] * dr - sinFloat[k] * di;
+            oi = cosFloat[k] * di + sinFloat[k] * dr;
+
+            // Z[k] = E[k] + i O[k], Z[N/2-k] = conj(E[k]) + i conj(O[k])
+            w_re[k] = er - oi;
+            w_im[k] = ei + or;
+            w_re[j] = er + oi;
+            w_im[j] = or - ei;
+        }
+
+        // N/2点の複素IFFT
+        if(halfPlan != null)  // N = 2 のときは1点の(恒等)変換なので不要
+        {
+            halfPlan.transform(w_re, w_im, false);
+        }
+    }
+}
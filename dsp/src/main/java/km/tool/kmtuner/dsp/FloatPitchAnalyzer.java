@@ -0,0 +1,408 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * PitchAnalyzerの単精度(float)版
+ * 入力は16bit PCM，出力に必要な精度は0.1Hz程度のため，FFT・NSDFの作業領域をfloatで持ち
+ * 作業領域のサイズを半分にする(ARMコアではdoubleより演算も速い)
+ * 処理の流れはPitchAnalyzerと同じで，誤差が積み重なる m_t(tau) の漸化式とエネルギーの計算のみ倍精度で行う
+ */
+public class FloatPitchAnalyzer implements PitchDetector
+{
+    private float[] re;
+    private float[] im;
+
+    private int windowSize;
+
+    private int samplingRate; // 入力信号のサンプリングレート(間引き後のレート)
+
+    private FFTPlan fftPlan; // 回転因子・ビット反転テーブル(窓サイズ毎に共有)
+
+    /* 作業領域(フレーム毎のnewを避けるため，解析器毎に確保して使い回す) */
+    private float[]  m;            // m_t(tau)格納用
+    private int[]    maximaIdx;    // key maxima の tau
+    private float[]  maximaValue;  // key maxima の相関の強さ
+    private final double[] xHz  = new double[3]; // 放物線補完用のx軸(周波数)
+    private final double[] yRel = new double[3]; // 放物線補完用のy軸(相関値)
+
+    /* 追跡モード(PitchAnalyzerと同じ) */
+    private boolean tracking = false;
+    private double trackingClarity;
+    private int lastTau = 0;
+
+    /* 探索する周期の範囲とACFの算出方法(PitchAnalyzerと同じ) */
+    private int minLag;
+    private int maxLag;
+    private double fftCost;
+
+    /* 解析中のフレーム(リングバッファからの解析) */
+    private float[] signal;          // 入力信号(ACFの算出方法が決まるまで保存する)
+    private boolean acfReady;
+    private long frameStart;
+    private long frameEnergyStart;
+    private double frameEnergy;
+
+    public FloatPitchAnalyzer(int window_size)
+    {
+        this(window_size, PitchAnalyzer.DEFAULT_SAMPLING_RATE);
+    }
+
+    public FloatPitchAnalyzer(int window_size, int sampling_rate)
+    {
+        re = new float[window_size];
+        im = new float[window_size];
+
+        windowSize = window_size;
+        samplingRate = sampling_rate;
+
+        fftPlan = FFTPlan.get(window_size);
+
+        m = new float[window_size];
+        // key maximaは正の区間毎に1つなので，w[1]～w[W/2]の範囲ではW/4個を超えない
+        maximaIdx = new int[window_size / 4 + 1];
+        maximaValue = new float[window_size / 4 + 1];
+        signal = new float[window_size / 2];
+
+        minLag = 1;
+        maxLag = window_size / 2 - 1;
+        fftCost = PitchAnalyzer.FFT_COST * window_size * (31 - Integer.numberOfLeadingZeros(window_size));
+    }
+
+    @Override
+    public void getExactPitch_hz(short[] audio_buffer, PitchData pitchData)
+    {
+        int length = inputLength();
+
+        long t = Instrumentation.start();
+        for(int i = 0; i < length; i++)
+        {
+            re[i] = (float) audio_buffer[i];
+            im[i] = 0;
+        }
+
+        zeroPadding();
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+
+        // m_t(tau)は入力信号から漸化式で算出する(ACFの算出で入力は上書きされるため先に求める)
+        t = Instrumentation.start();
+        energyTerms(re, length);
+        long energy_nanos = Instrumentation.elapsed(t);
+        acf(re, im);
+        t = Instrumentation.start();
+        normalize(re);
+        Instrumentation.record(Instrumentation.Stage.NORMALIZE, energy_nanos + Instrumentation.elapsed(t));
+
+        setPitchData(peakPicking(re), pitchData);
+    }
+
+    @Override
+    public void getExactPitch_hz(SampleRingBuffer ring, PitchData pitchData)
+    {
+        int length = inputLength();
+
+        long t = Instrumentation.start();
+        ring.copyLatest(signal, length);
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+        acfReady = false;
+        // m_t(tau)はリングバッファの累積エネルギーから算出する(インクリメンタル解析)
+        frameStart = ring.written() - length;
+        frameEnergyStart = ring.cumulativeEnergy(frameStart);
+        frameEnergy = (double) (ring.cumulativeEnergy(frameStart + length) - frameEnergyStart);
+
+        int pitch_tau = 0;
+        if(tracking && lastTau > 0)
+        {
+            pitch_tau = trackPeak(ring, length);
+        }
+        if(pitch_tau == 0)
+        {
+            correlate(length, minLag - 1, maxLag);
+            normalize(ring, minLag - 1, maxLag);
+            pitch_tau = peakPicking(re, minLag, maxLag);
+        }
+        lastTau = (pitch_tau > 0 && re[pitch_tau] >= trackingClarity) ? pitch_tau : 0;
+
+        setPitchData(pitch_tau, pitchData);
+    }
+
+    @Override
+    public void setPitchRange(double min_hz, double max_hz)
+    {
+        if(!(min_hz > 0) || !(max_hz > min_hz))
+        {
+            throw new IllegalArgumentException("pitch range: " + min_hz + " - " + max_hz + " Hz");
+        }
+
+        minLag = Math.max(1, (int) Math.floor(samplingRate / (max_hz * PitchAnalyzer.LAG_MARGIN)));
+        maxLag = Math.min(windowSize / 2 - 1, (int) Math.ceil(samplingRate * PitchAnalyzer.LAG_MARGIN / min_hz));
+        if(minLag >= maxLag)
+        {
+            minLag = 1;
+            maxLag = windowSize / 2 - 1;
+        }
+        lastTau = 0;
+    }
+
+    // PitchAnalyzer.correlate()の単精度版(直接求める場合の積和は倍精度で行う)
+    private void correlate(int length, int from, int to)
+    {
+        if(acfReady)
+        {
+            return;
+        }
+
+        long t = Instrumentation.start();
+        if((double) (to - from + 1) * length < fftCost)
+        {
+            for(int tau = from; tau <= to; tau++)
+            {
+                double sum = 0;
+                for(int i = 0; i < length - tau; i++)
+                {
+                    sum += (double) signal[i] * signal[i + tau];
+                }
+                re[tau] = (float) sum;
+            }
+            Instrumentation.stop(Instrumentation.Stage.CORRELATE, t);
+            return;
+        }
+
+        System.arraycopy(signal, 0, re, 0, length);
+        for(int i = 0; i < length; i++)
+        {
+            im[i] = 0;
+        }
+        zeroPadding();
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+        acf(re, im);
+        acfReady = true;
+    }
+
+    @Override
+    public void setTracking(boolean tracking, double clarity_threshold)
+    {
+        this.tracking = tracking;
+        this.trackingClarity = clarity_threshold;
+        lastTau = 0;
+    }
+
+    // PitchAnalyzer.trackPeak()の単精度版
+    private int trackPeak(SampleRingBuffer ring, int length)
+    {
+        int low = Math.max(Math.max(2, minLag), (int) Math.floor(lastTau / PitchAnalyzer.TRACKING_RANGE));
+        int high = Math.min(maxLag - 1, (int) Math.ceil(lastTau * PitchAnalyzer.TRACKING_RANGE));
+        if(low >= high)
+        {
+            return 0;
+        }
+
+        correlate(length, low - 1, high + 1);
+        normalize(ring, low - 1, high + 1);
+
+        int tau = low;
+        for(int i = low + 1; i <= high; i++)
+        {
+            if(re[i] > re[tau])
+                tau = i;
+        }
+        if(tau == low || tau == high || re[tau] < trackingClarity)
+        {
+            restore(low - 1, high + 1);
+            return 0;
+        }
+
+        int half = tau / 2;
+        if(half >= 2 && half + 1 < low - 1)
+        {
+            correlate(length, half - 1, half + 1);
+            normalize(ring, half - 1, half + 1);
+            float octave = Math.max(re[half], Math.max(re[half - 1], re[half + 1]));
+            if(octave >= PitchAnalyzer.PEAK_THRESHOLD * re[tau])
+            {
+                restore(low - 1, high + 1);
+                restore(half - 1, half + 1);
+                return 0;
+            }
+        }
+
+        return tau;
+    }
+
+    // PitchAnalyzerと同じく，re[from]～re[to]だけを正規化し，正規化前のACFをm[]に退避する
+    private void normalize(SampleRingBuffer ring, int from, int to)
+    {
+        long t = Instrumentation.start();
+        for(int i = from; i <= to; i++)
+        {
+            m[i] = re[i];
+            double m_tau = 2 * frameEnergy - (double) (ring.cumulativeEnergy(frameStart + i) - frameEnergyStart);
+            if(m_tau != 0)
+                re[i] = (float) ((2 * re[i]) / m_tau);
+        }
+        Instrumentation.stop(Instrumentation.Stage.NORMALIZE, t);
+    }
+
+    private void restore(int from, int to)
+    {
+        System.arraycopy(m, from, re, from, to - from + 1);
+    }
+
+    @Override
+    public int inputLength()
+    {
+        return windowSize / 2;
+    }
+
+    // NSDF(re)上のピッチの周期から補完後のピッチとClarityを算出してpitchDataに格納する
+    private void setPitchData(int pitch_tau, PitchData pitchData)
+    {
+        if(pitch_tau > 0)
+        {
+            xHz[0] = samplingRate / (double) (pitch_tau - 1);
+            xHz[1] = samplingRate / (double) pitch_tau;
+            xHz[2] = samplingRate / (double) (pitch_tau + 1);
+            yRel[0] = re[pitch_tau - 1];
+            yRel[1] = re[pitch_tau];
+            yRel[2] = re[pitch_tau + 1];
+
+            pitchData.setPitch(PitchAnalyzer.parabolicInterpolation(xHz, yRel));
+            pitchData.setClarity(re[pitch_tau]);
+        }
+    }
+
+    private void zeroPadding()
+    {
+        for(int i = windowSize / 2; i < windowSize; i++)
+        {
+            re[i] = 0;
+            im[i] = 0;
+        }
+    }
+
+    // PitchAnalyzer.nsdf()の漸化式で m_t(tau) を算出する(入力の後半は0詰めされている)
+    private void energyTerms(float [] signal, int length)
+    {
+        double sum = 0;
+        for(int i = 0; i < length; i++)
+        {
+            sum += (double) signal[i] * signal[i];
+        }
+
+        double m_tau = 2 * sum;   // 漸化式初期値
+        m[0] = (float) m_tau;
+        for(int i = 1; i < windowSize; i++)
+        {
+            double head = signal[i - 1];
+            double tail = signal[windowSize - i];
+            m_tau = m_tau - tail * tail - head * head;
+            m[i] = (float) m_tau;
+        }
+    }
+
+    private void normalize(float [] w_re)
+    {
+        for(int i = 0; i < windowSize; i++)
+        {
+            if(m[i] != 0)
+                w_re[i] = (2 * w_re[i]) / m[i];
+        }
+    }
+
+    // PitchAnalyzer.peakPicking()の単精度版
+    int peakPicking(float [] w)
+    {
+        return peakPicking(w, 1, windowSize / 2 - 1);
+    }
+
+    int peakPicking(float [] w, int from, int to)
+    {
+        int     numMaxima = 0;
+        int     tmpIdx = 0;
+        float   tmpValue = 0;
+        boolean isInRange = false;
+        long    t = Instrumentation.start();
+
+        for(int i = from; i <= to; i++)
+        {
+            if(isInRange)
+            {
+                if(w[i - 1] > 0 && w[i] <= 0)
+                {
+                    maximaIdx[numMaxima] = tmpIdx;
+                    maximaValue[numMaxima] = tmpValue;
+                    numMaxima++;
+                    isInRange = false;
+                }
+                else if(w[i] > tmpValue)
+                {
+                    tmpIdx = i;
+                    tmpValue = w[i];
+                }
+            }
+            else if(w[i - 1] < 0 && w[i] >= 0)
+            {
+                isInRange = true;
+                tmpIdx = i;
+                tmpValue = w[i];
+            }
+        }
+
+        float threshold = 0;
+        for(int i = 0; i < numMaxima; i++)
+        {
+            if(maximaValue[i] > threshold)
+            {
+                threshold = maximaValue[i];
+            }
+        }
+        threshold = threshold * (float) PitchAnalyzer.PEAK_THRESHOLD;
+
+        int tau_pitch = 0;
+        for(int i = 0; i < numMaxima; i++)
+        {
+            if(maximaValue[i] >= threshold)
+            {
+                tau_pitch = maximaIdx[i];
+                break;
+            }
+        }
+        Instrumentation.stop(Instrumentation.Stage.PEAK_PICKING, t);
+
+        return tau_pitch;
+    }
+
+    // PitchAnalyzer.acf()の単精度版
+    void acf(float [] w_re, float [] w_im)
+    {
+        int half = windowSize / 2;
+
+        long t = Instrumentation.start();
+        for(int i = 0; i < half; i++)
+        {
+            w_re[i] = w_re[2 * i];
+            w_im[i] = w_re[2 * i + 1];
+        }
+
+        fftPlan.realForward(w_re, w_im);
+        Instrumentation.stop(Instrumentation.Stage.FORWARD_FFT, t);
+
+        t = Instrumentation.start();
+        w_re[0] = w_re[0] * w_re[0];
+        w_im[0] = w_im[0] * w_im[0];
+        for(int i = 1; i < half; i++)
+        {
+            w_re[i] = w_re[i] * w_re[i] + w_im[i] * w_im[i];
+            w_im[i] = 0;
+        }
+        Instrumentation.stop(Instrumentation.Stage.POWER_SPECTRUM, t);
+
+        t = Instrumentation.start();
+        fftPlan.realInverse(w_re, w_im);
+
+        for(int i = half - 1; i >= 0; i--)
+        {
+            w_re[2 * i + 1] = w_im[i];
+            w_re[2 * i] = w_re[i];
+        }
+        Instrumentation.stop(Instrumentation.Stage.INVERSE_FFT, t);
+    }
+}
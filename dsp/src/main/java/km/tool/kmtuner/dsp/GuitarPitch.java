@@ -0,0 +1,35 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * Open-string targets of a guitar in standard tuning.
+ */
+public enum GuitarPitch
+{
+    OFF("88", 0),
+    SIXTH("6E", 82.4),
+    FIFTH("5A", 110.0),
+    FOURTH("4D", 146.0),
+    THIRD("3G", 196.0),
+    SECOND("2B", 246.9),
+    FIRST("1E", 329.6);
+
+    private final String text;
+    private final double hz;
+
+    private GuitarPitch(final String text, final double hz)
+    {
+        this.text = text;
+        this.hz = hz;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    public double hz()
+    {
+        return hz;
+    }
+}
@@ -0,0 +1,210 @@
+package km.tool.kmtuner.dsp;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 処理段毎の処理時間と，捨てた・飛ばしたフレームの数の計測
+ * 無効な間のコストはvolatileの読み出し1回だけで，有効な間もメモリを確保しない
+ *
+ *   long t = Instrumentation.start();
+ *   ... 計測する処理 ...
+ *   Instrumentation.stop(Instrumentation.Stage.FORWARD_FFT, t);
+ *
+ * 実行中に有効・無効を切り替えられる(切り替えた時点で計測中の区間は数えない)
+ */
+public final class Instrumentation
+{
+    // 計測する処理段
+    // 追跡モードなど一部の周期だけを求める場合は，解析1回あたり複数回記録されることがある
+    public enum Stage
+    {
+        CAPTURE_WAIT,    // 入力元からの1ブロックの読み込み(録音を待つ時間)
+        CAST,            // 入力のコピーと0詰め
+        CORRELATE,       // 時間領域でのACFの算出(一部の周期のみ)
+        FORWARD_FFT,
+        POWER_SPECTRUM,
+        INVERSE_FFT,
+        NORMALIZE,       // NSDFの正規化
+        PEAK_PICKING,
+        PUBLISH,         // 結果の公開(SharedData)
+        DISPLAY_FRAME    // 表示の1フレームの描画
+    }
+
+    // 計測中に数える事象
+    public enum Counter
+    {
+        DROPPED_BLOCKS,  // 解析が追いつかず録音スレッドが捨てたブロック
+        STALE_BLOCKS,    // 解析スレッドが古くなったため読まずに捨てたブロック
+        SKIPPED_BEHIND,  // 次のブロックが届いていたため解析しなかったフレーム(最新のフレームだけを解析する)
+        SKIPPED_SILENT,  // 無音のため解析しなかったフレーム
+        SKIPPED_STABLE,  // 音が安定しているため解析しなかったフレーム
+        ANALYSES         // 解析したフレーム
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static volatile boolean enabled = false;
+
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+    static
+    {
+        for(int i = 0; i < histograms.length; i++)
+        {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    private Instrumentation()
+    {
+    }
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    // 有効にすると，それまでの計測結果を消してから計測を始める
+    public static void setEnabled(boolean enable)
+    {
+        if(enable && !enabled)
+        {
+            reset();
+        }
+        enabled = enable;
+    }
+
+    public static void reset()
+    {
+        for(LatencyHistogram histogram : histograms)
+        {
+            histogram.clear();
+        }
+        for(int i = 0; i < COUNTERS.length; i++)
+        {
+            counters.set(i, 0);
+        }
+    }
+
+    // 計測の開始時刻(無効な場合は0)
+    public static long start()
+    {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // start()からの経過時間をstageに記録する(start()が0を返した場合は何もしない)
+    public static void stop(Stage stage, long start_nanos)
+    {
+        if(start_nanos != 0 && enabled)
+        {
+            histograms[stage.ordinal()].record(System.nanoTime() - start_nanos);
+        }
+    }
+
+    // start()からの経過時間(start()が0を返した場合は0)
+    // 離れた区間の合計を1回の処理時間として記録する場合に使う
+    public static long elapsed(long start_nanos)
+    {
+        return (start_nanos != 0) ? System.nanoTime() - start_nanos : 0;
+    }
+
+    // 計測済みの処理時間をstageに記録する
+    public static void record(Stage stage, long nanos)
+    {
+        if(enabled)
+        {
+            histograms[stage.ordinal()].record(nanos);
+        }
+    }
+
+    public static void count(Counter counter, long amount)
+    {
+        if(enabled && amount != 0)
+        {
+            counters.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    public static void count(Counter counter)
+    {
+        count(counter, 1);
+    }
+
+    // 現在の計測結果をdstに写す(メモリを確保しない)
+    public static void snapshot(Snapshot dst)
+    {
+        for(int i = 0; i < STAGES.length; i++)
+        {
+            LatencyHistogram histogram = histograms[i];
+            dst.count[i] = histogram.count();
+            dst.p50[i] = histogram.percentile(0.50);
+            dst.p99[i] = histogram.percentile(0.99);
+            dst.max[i] = histogram.max();
+        }
+        for(int i = 0; i < COUNTERS.length; i++)
+        {
+            dst.counters[i] = counters.get(i);
+        }
+    }
+
+    // ある時点の計測結果(時間はナノ秒)
+    public static final class Snapshot
+    {
+        private final long[] count = new long[STAGES.length];
+        private final long[] p50 = new long[STAGES.length];
+        private final long[] p99 = new long[STAGES.length];
+        private final long[] max = new long[STAGES.length];
+        private final long[] counters = new long[COUNTERS.length];
+
+        public long count(Stage stage)
+        {
+            return count[stage.ordinal()];
+        }
+
+        public long p50(Stage stage)
+        {
+            return p50[stage.ordinal()];
+        }
+
+        public long p99(Stage stage)
+        {
+            return p99[stage.ordinal()];
+        }
+
+        public long max(Stage stage)
+        {
+            return max[stage.ordinal()];
+        }
+
+        public long counter(Counter counter)
+        {
+            return counters[counter.ordinal()];
+        }
+
+        // 1行に1つの処理段(p50/p99/maxはマイクロ秒)と，最後に事象の数を並べる
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "%-15s %9s %9s %9s %9s%n", "stage", "count", "p50_us", "p99_us", "max_us"));
+            for(Stage stage : STAGES)
+            {
+                int i = stage.ordinal();
+                if(count[i] == 0)
+                {
+                    continue;
+                }
+                builder.append(String.format(Locale.US, "%-15s %9d %9.1f %9.1f %9.1f%n",
+                        stage.name(), count[i], p50[i] / 1e3, p99[i] / 1e3, max[i] / 1e3));
+            }
+            for(Counter counter : COUNTERS)
+            {
+                builder.append(counter.name()).append('=').append(counters[counter.ordinal()]).append(' ');
+            }
+            return builder.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package km.tool.kmtuner.dsp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 処理時間(ナノ秒)の分布を固定のバケットに数えるヒストグラム
+ * バケットは2のべき乗毎の区間をSUB_BUCKETS等分したもの(相対誤差は1/SUB_BUCKETS以内)
+ * record()はメモリを確保せず，複数のスレッドから呼び出せる
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // 2^MAX_EXPONENT ns(約69秒)以上は最後のバケットに数える
+    private static final int MAX_EXPONENT = 36;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if(nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        counts.incrementAndGet(bucket(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current = max.get();
+        while(nanos > current && !max.compareAndSet(current, nanos))
+        {
+            current = max.get();
+        }
+    }
+
+    public void clear()
+    {
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long count()
+    {
+        return total.get();
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    public double mean()
+    {
+        long n = total.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    // fraction(0～1)の分位点(そのバケットの上限値．記録が無ければ0)
+    // 記録中に呼び出した場合は，その間の記録が一部だけ反映されることがある
+    public long percentile(double fraction)
+    {
+        long n = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            n += counts.get(i);
+        }
+        if(n == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * n);
+        if(rank < 1)
+        {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts.get(i);
+            if(seen >= rank)
+            {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // 値が入るバケットの番号
+    // 0～SUB_BUCKETS-1はそのままの値，以降は 2^e 以上 2^(e+1) 未満の区間をSUB_BUCKETS等分する
+    static int bucket(long nanos)
+    {
+        if(nanos < SUB_BUCKETS)
+        {
+            return (int) nanos;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent >= MAX_EXPONENT)
+        {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // バケットに入る最大の値
+    static long upperBound(int bucket)
+    {
+        if(bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
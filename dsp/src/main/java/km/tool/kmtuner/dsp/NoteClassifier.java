@@ -0,0 +1,145 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 周波数を平均律(12-TET)の音名・オクターブ・セント偏差に変換する
+ * 周波数の比は対数を取るとオクターブに依らず一定になるため，Hz単位の幅ではなく
+ * log2(f / 基準ピッチ)から求めた半音単位の位置で判定する
+ * 基準ピッチとチューニングに依存する値(各音の周波数，各音から最も近い弦)はコンストラクタで表にしておき，
+ * フレーム毎の判定は対数1回と表引きだけで済ませる
+ */
+public final class NoteClassifier
+{
+    public static final double DEFAULT_REFERENCE_HZ = 440.0;
+
+    // 表の範囲(MIDIノート番号 0(C-1, 8.2Hz) ～ 127(G9, 12.5kHz))
+    public static final int NOTE_COUNT = 128;
+
+    private static final int REFERENCE_NOTE = 69; // A4
+
+    private static final String[] NOTE_NAMES =
+            {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
+
+    private static final double SEMITONES_PER_LN = 12.0 / Math.log(2.0);
+
+    private final double referenceHz;
+    private final Tuning tuning;
+
+    private final double logReference;      // ln(基準ピッチ)
+    private final double[] noteHz;          // 各音の周波数
+    private final int[] nearestString;      // 各音から最も近い弦のインデックス
+    private final double lowestHz;          // 表の範囲の下限(ノート0の-50セント)
+    private final double highestHz;         // 表の範囲の上限(ノート127の+50セント)
+
+    /**
+     * classify()の結果(呼び出し側で1つ確保して使い回す)
+     */
+    public static final class Result
+    {
+        public int note;            // 最も近い音のMIDIノート番号
+        public double cents;        // 最も近い音からの偏差 [cent] (-50 ～ +50)
+        public int string;          // 最も近い弦のインデックス(0が最低音弦)
+        public double stringCents;  // その弦の開放音からの偏差 [cent]
+
+        public int octave()
+        {
+            return NoteClassifier.octave(note);
+        }
+
+        public String noteName()
+        {
+            return NoteClassifier.noteName(note);
+        }
+    }
+
+    public NoteClassifier()
+    {
+        this(DEFAULT_REFERENCE_HZ, Tuning.STANDARD);
+    }
+
+    public NoteClassifier(double reference_hz, Tuning tuning)
+    {
+        if(!(reference_hz > 0))
+        {
+            throw new IllegalArgumentException("reference_hz: " + reference_hz);
+        }
+
+        this.referenceHz = reference_hz;
+        this.tuning = tuning;
+
+        logReference = Math.log(reference_hz);
+
+        noteHz = new double[NOTE_COUNT];
+        for(int n = 0; n < NOTE_COUNT; n++)
+        {
+            noteHz[n] = reference_hz * Math.pow(2.0, (n - REFERENCE_NOTE) / 12.0);
+        }
+        lowestHz = noteHz[0] * Math.pow(2.0, -0.5 / 12.0);
+        highestHz = noteHz[NOTE_COUNT - 1] * Math.pow(2.0, 0.5 / 12.0);
+
+        // 隣り合う弦の中間の音は低音弦側に割り当てる
+        nearestString = new int[NOTE_COUNT];
+        int s = 0;
+        for(int n = 0; n < NOTE_COUNT; n++)
+        {
+            while(s + 1 < tuning.stringCount()
+                    && (tuning.note(s + 1) - n) < (n - tuning.note(s)))
+            {
+                s++;
+            }
+            nearestString[n] = s;
+        }
+    }
+
+    public double referenceHz()
+    {
+        return referenceHz;
+    }
+
+    public Tuning tuning()
+    {
+        return tuning;
+    }
+
+    // 基準ピッチでの平均律の周波数
+    public double noteHz(int note)
+    {
+        return noteHz[note];
+    }
+
+    // hzを判定してresultに格納する
+    // 表の範囲外(0以下，NaNを含む)の場合はfalseを返し，resultは変更しない
+    public boolean classify(double hz, Result result)
+    {
+        if(!(hz >= lowestHz && hz < highestHz))
+        {
+            return false;
+        }
+
+        double semitones = REFERENCE_NOTE + (Math.log(hz) - logReference) * SEMITONES_PER_LN;
+        int note = (int) (semitones + 0.5);    // semitones >= -0.5 のため切り捨てで四捨五入になる
+        if(note >= NOTE_COUNT)
+        {
+            note = NOTE_COUNT - 1;
+        }
+
+        int string = nearestString[note];
+
+        result.note = note;
+        result.cents = (semitones - note) * 100.0;
+        result.string = string;
+        result.stringCents = (semitones - tuning.note(string)) * 100.0;
+
+        return true;
+    }
+
+    public static String noteName(int note)
+    {
+        return NOTE_NAMES[note % 12];
+    }
+
+    // 科学的音高表記のオクターブ(A4 = 69 が4)
+    public static int octave(int note)
+    {
+        return note / 12 - 1;
+    }
+}
@@ -0,0 +1,282 @@
+package km.tool.kmtuner.dsp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 録音済みの16bit PCM(モノラル)を再生する入力元
+ * メモリ上のサンプル列，またはリトルエンディアンのPCMストリーム(WAVファイルならヘッダを読み飛ばす)から読み込む
+ * 実時間を待たずに読み込めるだけ返す
+ */
+public class PcmReplaySource implements AudioSource
+{
+    private final int sampleRate;
+
+    /* メモリ上のサンプル列を再生する場合 */
+    private final short[] samples;
+    private final boolean loop;   // 末尾まで再生したら先頭に戻る
+    private int position = 0;
+
+    /* ストリームから再生する場合 */
+    private final InputStream stream;
+    private byte[] bytes = new byte[0];  // ストリームからの読み込み用
+    private int pendingByte = -1;        // 前回の読み込みで余った奇数バイト目
+
+    public PcmReplaySource(short[] samples, int sample_rate, boolean loop)
+    {
+        this.sampleRate = sample_rate;
+        this.samples = samples;
+        this.loop = loop;
+        this.stream = null;
+    }
+
+    // ヘッダの無いPCMストリーム
+    public PcmReplaySource(InputStream pcm, int sample_rate)
+    {
+        this.sampleRate = sample_rate;
+        this.samples = null;
+        this.loop = false;
+        this.stream = pcm;
+    }
+
+    // WAVファイル(16bit PCM，モノラル)のストリーム
+    // dataチャンクの先頭まで読み進め，fmtチャンクのサンプリングレートを使う
+    public static PcmReplaySource fromWav(InputStream wav) throws IOException
+    {
+        byte[] header = new byte[16];
+        readFully(wav, header, 12);
+        if(!fourCC(header, 0, "RIFF") || !fourCC(header, 8, "WAVE"))
+        {
+            throw new IOException("not a RIFF/WAVE stream");
+        }
+
+        int sample_rate = 0;
+        while(true)
+        {
+            readFully(wav, header, 8);
+            long size = littleEndianInt(header, 4) & 0xFFFFFFFFL;
+
+            if(fourCC(header, 0, "data"))
+            {
+                if(sample_rate == 0)
+                {
+                    throw new IOException("data chunk before fmt chunk");
+                }
+                return new PcmReplaySource(wav, sample_rate);
+            }
+
+            long skip = size + (size & 1); // チャンクは偶数バイトに詰められている
+            if(fourCC(header, 0, "fmt "))
+            {
+                readFully(wav, header, 16);
+                int format = littleEndianShort(header, 0);
+                int channels = littleEndianShort(header, 2);
+                int bits = littleEndianShort(header, 14);
+                if(format != 1 || channels != 1 || bits != 16)
+                {
+                    throw new IOException("only 16-bit mono PCM is supported (format " + format
+                            + ", " + channels + " channels, " + bits + " bits)");
+                }
+                sample_rate = littleEndianInt(header, 4);
+                skip -= 16;
+            }
+            while(skip > 0)
+            {
+                long skipped = wav.skip(skip);
+                if(skipped <= 0)
+                {
+                    throw new IOException("unexpected end of stream");
+                }
+                skip -= skipped;
+            }
+        }
+    }
+
+    @Override
+    public int sampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public boolean isLive()
+    {
+        return false;
+    }
+
+    @Override
+    public void start()
+    {
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length)
+    {
+        return (samples != null) ? readSamples(buffer, offset, length) : readStream(buffer, offset, length);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int length)
+    {
+        int start = buffer.position();
+        int count;
+        if(samples != null)
+        {
+            count = readableSamples(length);
+            for(int i = 0; i < count; i++)
+            {
+                buffer.putShort(start + 2 * i, samples[position + i]);
+            }
+            if(count > 0)
+            {
+                position += count;
+            }
+        }
+        else
+        {
+            count = fillBytes(length);
+            for(int i = 0; i < count; i++)
+            {
+                buffer.putShort(start + 2 * i, sampleOfBytes(i));
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public void release()
+    {
+        if(stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private int readSamples(short[] buffer, int offset, int length)
+    {
+        int count = readableSamples(length);
+        if(count > 0)
+        {
+            System.arraycopy(samples, position, buffer, offset, count);
+            position += count;
+        }
+
+        return count;
+    }
+
+    // メモリ上のサンプル列から今回読めるサンプル数(positionから連続する分．末尾ならEND_OF_STREAM)
+    private int readableSamples(int length)
+    {
+        if(position >= samples.length)
+        {
+            if(!loop || samples.length == 0)
+            {
+                return END_OF_STREAM;
+            }
+            position = 0;
+        }
+
+        return Math.min(length, samples.length - position);
+    }
+
+    private int readStream(short[] buffer, int offset, int length)
+    {
+        int count = fillBytes(length);
+        for(int i = 0; i < count; i++)
+        {
+            buffer[offset + i] = sampleOfBytes(i);
+        }
+
+        return count;
+    }
+
+    // ストリームから最大lengthサンプル分をbytesに読み込み，揃ったサンプル数を返す(終わりならEND_OF_STREAM)
+    // 余った奇数バイト目は次回に回す
+    private int fillBytes(int length)
+    {
+        if(bytes.length < 2 * length)
+        {
+            bytes = new byte[2 * length];
+        }
+
+        int filled = 0;
+        if(pendingByte >= 0)
+        {
+            bytes[0] = (byte) pendingByte;
+            filled = 1;
+            pendingByte = -1;
+        }
+
+        int read;
+        try
+        {
+            read = stream.read(bytes, filled, 2 * length - filled);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            return END_OF_STREAM;
+        }
+        if(read < 0)
+        {
+            return END_OF_STREAM;
+        }
+        filled += read;
+
+        if((filled & 1) != 0)
+        {
+            pendingByte = bytes[filled - 1] & 0xFF;
+        }
+
+        return filled / 2;
+    }
+
+    // fillBytes()で読み込んだi番目のサンプル(リトルエンディアン)
+    private short sampleOfBytes(int i)
+    {
+        return (short) ((bytes[2 * i] & 0xFF) | (bytes[2 * i + 1] << 8));
+    }
+
+    private static void readFully(InputStream in, byte[] dst, int length) throws IOException
+    {
+        int filled = 0;
+        while(filled < length)
+        {
+            int read = in.read(dst, filled, length - filled);
+            if(read < 0)
+            {
+                throw new IOException("unexpected end of stream");
+            }
+            filled += read;
+        }
+    }
+
+    private static boolean fourCC(byte[] src, int offset, String id)
+    {
+        for(int i = 0; i < 4; i++)
+        {
+            if(src[offset + i] != (byte) id.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int littleEndianShort(byte[] src, int offset)
+    {
+        return (src[offset] & 0xFF) | ((src[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int littleEndianInt(byte[] src, int offset)
+    {
+        return littleEndianShort(src, offset) | (littleEndianShort(src, offset + 2) << 16);
+    }
+}
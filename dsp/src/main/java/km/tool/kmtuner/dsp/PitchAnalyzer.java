@@ -0,0 +1,533 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * Created by Kenta on 2015/03/01.
+ */
+public class PitchAnalyzer implements PitchDetector
+{
+    public static final int DEFAULT_SAMPLING_RATE = 44100;
+
+    // key maximaの閾値(最大値に対する比．0.8～1.0の間で調整可能)
+    static final double PEAK_THRESHOLD = 0.8;
+
+    // 追跡モードで探索する周期の範囲(前フレームの周期の1/TRACKING_RANGE～TRACKING_RANGE倍．半音)
+    static final double TRACKING_RANGE = Math.pow(2.0, 1.0 / 12.0);
+
+    // setPitchRange()で探索する周期の余裕(ピッチの周期を含む正の区間全体が範囲に収まるようにする)
+    static final double LAG_MARGIN = 1.5;
+
+    // ACFの算出方法を選ぶコストモデル
+    // 時間領域で直接求める場合は (周期の数 x 入力サンプル数) 回の積和，FFTの場合は (W log2 W) に比例するとし，
+    // FFTの1点・1段あたりのコストを積和の回数に換算した係数
+    static final double FFT_COST = 3.0;
+
+    private double[] re;
+    private double[] im;
+
+    private int windowSize;
+
+    private int samplingRate; // 入力信号のサンプリングレート(間引き後のレート)
+
+    private FFTPlan fftPlan; // 回転因子・ビット反転テーブル(窓サイズ毎に共有)
+
+    /* 作業領域(フレーム毎のnewを避けるため，解析器毎に確保して使い回す) */
+    private double[] signal;       // nsdf()・リングバッファからの解析での入力信号保存用
+    private double[] m;            // nsdf()でのm_t(tau)格納用
+    private int[]    maximaIdx;    // key maxima の tau
+    private double[] maximaValue;  // key maxima の相関の強さ
+    private final double[] xHz  = new double[3]; // 放物線補完用のx軸(周波数)
+    private final double[] yRel = new double[3]; // 放物線補完用のy軸(相関値)
+
+    /* 追跡モード(前フレームのピッチ周期の近傍だけを探索する) */
+    private boolean tracking = false;
+    private double trackingClarity;  // 追跡を続けるのに必要なClarity
+    private int lastTau = 0;         // 前フレームのピッチ周期(0なら次は全範囲を探索する)
+
+    /* 探索する周期の範囲(peakPicking()が調べるw[minLag]～w[maxLag]) */
+    private int minLag;
+    private int maxLag;
+    private double fftCost;          // FFTでACFを算出するコスト(積和の回数に換算)
+
+    /* 解析中のフレーム(リングバッファからの解析) */
+    private boolean acfReady;        // reに全ての周期のACFが算出済み
+    private long frameStart;         // 処理窓先頭のサンプル番号
+    private long frameEnergyStart;   // 処理窓先頭までの累積エネルギー
+    private double frameEnergy;      // 窓内の2乗和
+
+    public PitchAnalyzer(int window_size)
+    {
+        this(window_size, DEFAULT_SAMPLING_RATE);
+    }
+
+    public PitchAnalyzer(int window_size, int sampling_rate)
+    {
+        re = new double[window_size];
+        im = new double[window_size];
+
+        windowSize = window_size;
+        samplingRate = sampling_rate;
+
+        fftPlan = FFTPlan.get(window_size);
+
+        ensureWorkspace(window_size);
+
+        minLag = 1;
+        maxLag = window_size / 2 - 1;
+        fftCost = FFT_COST * window_size * (31 - Integer.numberOfLeadingZeros(window_size));
+    }
+
+    // 処理窓サイズに合わせて作業領域を確保する(足りない場合のみ確保し直す)
+    private void ensureWorkspace(int size)
+    {
+        if(signal == null || signal.length < size)
+        {
+            signal = new double[size];
+            m = new double[size];
+            // key maximaは正の区間毎に1つなので，w[1]～w[W/2]の範囲ではW/4個を超えない
+            maximaIdx = new int[size / 4 + 1];
+            maximaValue = new double[size / 4 + 1];
+        }
+    }
+
+    @Override
+    public void getExactPitch_hz(short[] audio_buffer, PitchData pitchData)
+    {
+        long t = Instrumentation.start();
+        cast(audio_buffer, re, im);
+
+        zeroPadding(re, im);
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+
+        //CAUTION: All elements of im must be set to zero.
+        getExactPitch_hz(re, im, pitchData);
+    }
+
+    // リングバッファ中の最新の(処理窓サイズ / 2)サンプルからピッチを算出する
+    // フレームが重なり合う場合に備え，NSDFの正規化項m_t(tau)は入力信号から計算し直さず，
+    // リングバッファが書き込み時に更新している累積エネルギーから求める(インクリメンタル解析)
+    // ACF・NSDFは探索する周期の範囲だけを求める(範囲が狭ければ時間領域で直接，広ければFFTで算出する)
+    @Override
+    public void getExactPitch_hz(SampleRingBuffer ring, PitchData pitchData)
+    {
+        int length = inputLength();
+
+        long t = Instrumentation.start();
+        ring.copyLatest(signal, length);  // 入力信号(ACFの算出方法が決まるまで保存する)
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+        acfReady = false;
+        frameStart = ring.written() - length;
+        frameEnergyStart = ring.cumulativeEnergy(frameStart);
+        frameEnergy = (double) (ring.cumulativeEnergy(frameStart + length) - frameEnergyStart);
+
+        /**[ピッチのインデックス(周期)を算出]*/
+        int pitch_tau = 0;
+        if(tracking && lastTau > 0)
+        {
+            pitch_tau = trackPeak(ring, length);  // 前フレームの周期の近傍だけを探索
+        }
+        if(pitch_tau == 0)
+        {
+            correlate(length, minLag - 1, maxLag);  // 信号のACFを算出
+            normalize(ring, minLag - 1, maxLag);    // 信号のNSDFを算出
+            pitch_tau = peakPicking(re, minLag, maxLag);
+        }
+        lastTau = (pitch_tau > 0 && re[pitch_tau] >= trackingClarity) ? pitch_tau : 0;
+
+        setPitchData(pitch_tau, re, pitchData);
+    }
+
+    // 探索するピッチの範囲を設定する(リングバッファからの解析のみ)
+    // 周期の範囲は前後にLAG_MARGIN倍の余裕を持たせ，処理窓で求められる範囲(1～W/2-1)に収める
+    @Override
+    public void setPitchRange(double min_hz, double max_hz)
+    {
+        if(!(min_hz > 0) || !(max_hz > min_hz))
+        {
+            throw new IllegalArgumentException("pitch range: " + min_hz + " - " + max_hz + " Hz");
+        }
+
+        minLag = Math.max(1, (int) Math.floor(samplingRate / (max_hz * LAG_MARGIN)));
+        maxLag = Math.min(windowSize / 2 - 1, (int) Math.ceil(samplingRate * LAG_MARGIN / min_hz));
+        if(minLag >= maxLag)
+        {
+            minLag = 1;
+            maxLag = windowSize / 2 - 1;
+        }
+        lastTau = 0;
+    }
+
+    // re[from]～re[to]に入力信号(signal[0]～signal[length-1])のACFを用意する
+    // 周期の数が少なくコストモデルで安ければ時間領域で直接求め，そうでなければFFTで全ての周期を求める
+    private void correlate(int length, int from, int to)
+    {
+        if(acfReady)
+        {
+            return;
+        }
+
+        long t = Instrumentation.start();
+        if((double) (to - from + 1) * length < fftCost)
+        {
+            for(int tau = from; tau <= to; tau++)
+            {
+                double sum = 0;
+                for(int i = 0; i < length - tau; i++)
+                {
+                    sum += signal[i] * signal[i + tau];
+                }
+                re[tau] = sum;
+            }
+            Instrumentation.stop(Instrumentation.Stage.CORRELATE, t);
+            return;
+        }
+
+        System.arraycopy(signal, 0, re, 0, length);
+        for(int i = 0; i < length; i++)
+        {
+            im[i] = 0;
+        }
+        zeroPadding(re, im);
+        Instrumentation.stop(Instrumentation.Stage.CAST, t);
+        acf(re, im);
+        acfReady = true;
+    }
+
+    @Override
+    public void setTracking(boolean tracking, double clarity_threshold)
+    {
+        this.tracking = tracking;
+        this.trackingClarity = clarity_threshold;
+        lastTau = 0;
+    }
+
+    // 前フレームのピッチ周期lastTauの前後TRACKING_RANGE倍の範囲だけを正規化してNSDFの最大値を探す
+    // 次の場合は0を返し，全範囲の探索に戻す
+    //  - 最大値が範囲の端にある(ピッチが範囲外に動いた)，またはClarityが閾値未満(音を見失った)
+    //  - 半分の周期にも同程度のピークがある(1オクターブ上に移った．peakPicking()なら短い方を選ぶ)
+    private int trackPeak(SampleRingBuffer ring, int length)
+    {
+        int low = Math.max(Math.max(2, minLag), (int) Math.floor(lastTau / TRACKING_RANGE));
+        int high = Math.min(maxLag - 1, (int) Math.ceil(lastTau * TRACKING_RANGE));
+        if(low >= high)
+        {
+            return 0;
+        }
+
+        correlate(length, low - 1, high + 1);
+        normalize(ring, low - 1, high + 1);
+
+        int tau = low;
+        for(int i = low + 1; i <= high; i++)
+        {
+            if(re[i] > re[tau])
+                tau = i;
+        }
+        if(tau == low || tau == high || re[tau] < trackingClarity)
+        {
+            restore(low - 1, high + 1);
+            return 0;
+        }
+
+        // 1オクターブ上(半分の周期)の確認
+        int half = tau / 2;
+        if(half >= 2 && half + 1 < low - 1)
+        {
+            correlate(length, half - 1, half + 1);
+            normalize(ring, half - 1, half + 1);
+            double octave = Math.max(re[half], Math.max(re[half - 1], re[half + 1]));
+            if(octave >= PEAK_THRESHOLD * re[tau])
+            {
+                restore(low - 1, high + 1);
+                restore(half - 1, half + 1);
+                return 0;
+            }
+        }
+
+        return tau;
+    }
+
+    // re[from]～re[to]のACFだけを，解析中のフレームの累積エネルギーから求めたm_t(tau)でNSDFに正規化する
+    // 入力信号はlengthサンプルで，処理窓の残り半分は0詰めされている(tau <= W/2)
+    //   m[tau] = 2E - (x[0]～x[tau-1]の2乗和)   (E：窓内の2乗和．末尾側の項は0詰めのため0になる)
+    // 全範囲の探索に戻る場合に備え，正規化前のACFをm[]に退避する
+    private void normalize(SampleRingBuffer ring, int from, int to)
+    {
+        long t = Instrumentation.start();
+        for(int i = from; i <= to; i++)
+        {
+            m[i] = re[i];
+            double m_tau = 2 * frameEnergy - (double) (ring.cumulativeEnergy(frameStart + i) - frameEnergyStart);
+            // m_t(tau)が0(無音区間など)となるtauは0除算を避けてACFの値のまま残す
+            if(m_tau != 0)
+                re[i] = (2 * re[i]) / m_tau;
+        }
+        Instrumentation.stop(Instrumentation.Stage.NORMALIZE, t);
+    }
+
+    // normalize(ring, ...)で正規化したre[from]～re[to]をACFに戻す
+    private void restore(int from, int to)
+    {
+        System.arraycopy(m, from, re, from, to - from + 1);
+    }
+
+    // 1回の解析に使用する入力サンプル数(残りは0詰めされる)
+    @Override
+    public int inputLength()
+    {
+        return windowSize / 2;
+    }
+
+    public void getExactPitch_hz(double [] sig_re,
+                                        double [] sig_im,
+                                        PitchData pitchData)
+    {
+        /**[ピッチのインデックス(周期)を算出]*/
+        int pitch_tau = detectPitch(sig_re, sig_im);
+
+        setPitchData(pitch_tau, sig_re, pitchData);
+    }
+
+    // NSDF(sig_re)上のピッチの周期から補完後のピッチとClarityを算出してpitchDataに格納する
+    private void setPitchData(int pitch_tau, double [] sig_re, PitchData pitchData)
+    {
+        if(pitch_tau > 0)
+        {
+            /**[前後のインデックスを含む3つの周期を周波数に変換(関数のx軸に対応する)]*/
+            xHz[0] = samplingRate / (double) (pitch_tau - 1);
+            xHz[1] = samplingRate / (double) pitch_tau;
+            xHz[2] = samplingRate / (double) (pitch_tau + 1);
+            /**[3点の相関値(関数のy軸に対応する)を配列にまとめる]*/
+            yRel[0] = sig_re[pitch_tau - 1];
+            yRel[1] = sig_re[pitch_tau];
+            yRel[2] = sig_re[pitch_tau + 1];
+
+            /**[3点から放物線補完により補完後のピッチ(周波数)を算出]*/
+            pitchData.setPitch(parabolicInterpolation(xHz, yRel));
+            pitchData.setClarity(sig_re[pitch_tau]);
+        }
+    }
+
+    private void cast(short[] record_buffer, double[] re, double[] im)
+    {
+        for(int i = 0; i < windowSize / 2; i++)
+        {
+            re[i] = (double) record_buffer[i];
+            im[i] = 0;
+        }
+    }
+
+    private void zeroPadding(double[] re, double[] im)
+    {
+        for(int i = windowSize /2; i < windowSize; i++)
+        {
+            re[i] = 0;
+            im[i] = 0;
+        }
+    }
+
+    public static double parabolicInterpolation(double [] x, double [] y)
+    {
+        /**[3点より放物線補完したときの最大値(微分が0になる点)を算出]*/
+        return (0.5f * ((x[1] * x[1] - x[0] * x[0]) * (y[1] - y[2]) - (x[1] * x[1] - x[2] * x[2]) * (y[1] - y[0]))
+            / ((x[1] - x[0]) * (y[1] - y[2]) - (x[1] - x[2]) * (y[1] - y[0])));
+    }
+
+    // 処理窓に収められた信号からピッチ(の周期)を検出して返すメソッド
+    // 注意：入力信号は保存されない
+    // メソッド実行後のw_reには信号のNSDFが入っている
+    // w_re[detectPitch(w_re, w_im)]はClarity(ピッチの確度，相関の強さ)を表す
+    public int detectPitch(
+            double [] w_re, // 入力信号実部(length = 処理窓サイズ)
+            double [] w_im  // 入力信号虚部(length = 処理窓サイズ)
+    )
+    {
+        int res;                 // ピッチと思われる周期の保存用
+        nsdf(w_re, w_im);        // 信号のNSDFを算出
+        res = peakPicking(w_re); // NSDFからピッチを検出
+        return res;
+    }
+
+    // NSDFの系列(w)からピッチを検出するメソッド
+    // (acf(), nsdf()と同様にベンチマークから呼び出すためパッケージプライベートとしている)
+    int peakPicking(double [] w)
+    {
+        return peakPicking(w, 1, w.length / 2 - 1); // NSDFから使える値はw[1]～w[W/2]まで
+    }
+
+    // w[from]～w[to]の範囲でピッチを検出する(w[from - 1]～w[to]だけを参照する)
+    // 範囲内で負から正へゼロクロスし，範囲内で正から負に戻る区間だけをkey maximaの候補とする
+    int peakPicking(double [] w, int from, int to)
+    {
+        int    numMaxima = 0;       // key maxima の個数
+        int    tmpIdx = 0;          // 暫定maxのtau
+        double tmpValue = 0;        // 暫定maxの相関の強さ
+        boolean isInRange = false;  // 測定区間かどうかを区別するための制御変数
+        long   t = Instrumentation.start();
+
+        // key maxima のリストを算出
+        for(int i = from; i <= to; i++)
+        {
+            if(isInRange)
+            {
+                if(w[i - 1] > 0 && w[i] <= 0)
+                {
+                    /* iが正から負へのゼロクロスポイント *
+                     * だったときの処理                  */
+                    maximaIdx[numMaxima] = tmpIdx;     // この区間のmaxをkey maximaに追加
+                    maximaValue[numMaxima] = tmpValue;
+                    numMaxima++;
+                    isInRange = false;                 // 測定区間から外れる
+                }
+                else
+                {
+                    // 区間内maxの選定
+                    if(w[i] > tmpValue)
+                    {
+                        tmpIdx = i;
+                        tmpValue = w[i];
+                    }
+                }
+            }
+            else
+            {
+                if(w[i - 1] < 0 && w[i] >= 0)
+                {
+                    /* iが負から正へのゼロクロスポイント *
+                     * だったときの処理                  */
+                    isInRange = true;
+                    // 暫定maxは区間毎にリセットする
+                    tmpIdx = i;
+                    tmpValue = w[i];
+                }
+            }
+        }
+
+        // key maximaの最大値から閾値を算出
+        double threshold = 0; // 閾値の保存用
+        // key maximaの中から最大値を選定
+        for(int i = 0; i < numMaxima; i++)
+        {
+            if(maximaValue[i] > threshold)
+            {
+                threshold = maximaValue[i];
+            }
+        }
+        // 閾値の算出
+        threshold = threshold * PEAK_THRESHOLD;
+        // 閾値を元にtau_pitchを算出 */
+        int tau_pitch = 0;
+        for(int i = 0; i < numMaxima; i++)
+        {
+            if(maximaValue[i] >= threshold)
+            {
+                tau_pitch = maximaIdx[i];
+                break;
+            }
+        }
+        Instrumentation.stop(Instrumentation.Stage.PEAK_PICKING, t);
+
+        return tau_pitch;
+    }
+
+    void nsdf(
+            double [] w_re,
+            double [] w_im
+    )
+    {
+        // 入力信号のNSDFを算出するメソッド
+        // 注意：入力信号は保存されない(メソッド内で一時保存される)
+
+        int WINDOW_SIZE = w_re.length; // 処理窓サイズ
+        ensureWorkspace(WINDOW_SIZE);
+        double [] signal_re = signal;  // 入力信号保存用
+
+        // 入力信号をディープコピー
+        System.arraycopy(w_re, 0, signal_re, 0, WINDOW_SIZE);
+
+        // ACFを算出
+        acf(w_re, w_im);
+        // m_t(tau)を算出
+        long t = Instrumentation.start();
+        m[0] = 2 * w_re[0];                  // 漸化式初期値
+        for(int i = 1; i < WINDOW_SIZE; i++) // 漸化式によりm[1]～m[WINDOW_SIZE - 1]を算出
+        {
+            m[i] = m[i - 1]
+                    - signal_re[WINDOW_SIZE - i] * signal_re[WINDOW_SIZE - i]
+                    - signal_re[i - 1] * signal_re[i - 1];
+        }
+        // NSDFを算出
+        normalize(w_re);
+        Instrumentation.stop(Instrumentation.Stage.NORMALIZE, t);
+
+        // w_reに入力信号のNSDFが算出されている
+    }
+
+    // w_reのACFをm_t(tau)で正規化してNSDFにするメソッド
+    private void normalize(double [] w_re)
+    {
+        for(int i = 0; i < w_re.length; i++)
+        {
+            // m_t(tau)が0(無音区間など)となるtauは0除算を避けてACFの値のまま残す
+            if(m[i] != 0)
+                w_re[i] = (2 * w_re[i]) / m[i];
+        }
+    }
+
+    // 入力信号のACFを算出するメソッド
+    // 注意：入力信号は保存されない
+    // 入力は実信号(w_imは全て0)であるため，N点の実信号をN/2点の複素信号に詰めて
+    // 実数FFTで処理する(w_imの内容は保存されない)
+    void acf(
+            double [] w_re, // 入力信号実部(length = FFT窓サイズ)
+            double [] w_im  // 入力信号虚部(length = FFT窓サイズ)
+    )
+    {
+        int half = w_re.length / 2;
+        FFTPlan plan = (w_re.length == fftPlan.size()) ? fftPlan : FFTPlan.get(w_re.length);
+
+        // パワスペクトル密度を算出
+        powerSpectrum(plan, w_re, w_im);
+        // IFFT
+        // 逆フーリエ変換(ACF算出) <= ウィーナー・ヒンチンの定理参照
+        long t = Instrumentation.start();
+        plan.realInverse(w_re, w_im);
+        // 詰めた形から元の並びに戻す(後ろから埋めることで上書きを防ぐ)
+        for(int i = half - 1; i >= 0; i--)
+        {
+            w_re[2 * i + 1] = w_im[i];
+            w_re[2 * i] = w_re[i];
+        }
+        Instrumentation.stop(Instrumentation.Stage.INVERSE_FFT, t);
+
+        // w_reに信号のACFが算出されている
+    }
+
+    // 実信号w_re(length = plan.size())のパワスペクトル密度を算出するメソッド
+    // acf()と多弦解析(StrumAnalyzer)で共有する
+    // 結果は w_re[k] = |X[k]|^2 (k = 0～N/2-1), w_im[0] = |X[N/2]|^2 の詰めた形で返す
+    static void powerSpectrum(FFTPlan plan, double [] w_re, double [] w_im)
+    {
+        int half = plan.size() / 2;
+
+        // 実信号を w_re[n] = x[2n], w_im[n] = x[2n+1] の形に詰める
+        long t = Instrumentation.start();
+        for(int i = 0; i < half; i++)
+        {
+            w_re[i] = w_re[2 * i];
+            w_im[i] = w_re[2 * i + 1];
+        }
+        // FFT
+        plan.realForward(w_re, w_im);
+        Instrumentation.stop(Instrumentation.Stage.FORWARD_FFT, t);
+        // パワスペクトル密度を算出
+        t = Instrumentation.start();
+        w_re[0] = w_re[0] * w_re[0]; // 直流成分
+        w_im[0] = w_im[0] * w_im[0]; // ナイキスト成分
+        for(int i = 1; i < half; i++)
+        {
+            w_re[i] = w_re[i] * w_re[i] + w_im[i] * w_im[i]; // 絶対値2乗を算出
+            w_im[i] = 0; // 結果は実数値となる
+        }
+        Instrumentation.stop(Instrumentation.Stage.POWER_SPECTRUM, t);
+    }
+}
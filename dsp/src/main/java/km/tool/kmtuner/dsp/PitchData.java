@@ -0,0 +1,27 @@
+package km.tool.kmtuner.dsp;
+
+public class PitchData
+{
+    private double pitch = 0;
+    private double clarity = 0;
+
+    public void setPitch(double pitch)
+    {
+        this.pitch = pitch;
+    }
+
+    public void setClarity(double clarity)
+    {
+        this.clarity = clarity;
+    }
+
+    public double getPitch()
+    {
+        return pitch;
+    }
+
+    public double getClarity()
+    {
+        return clarity;
+    }
+}
@@ -0,0 +1,54 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 処理窓毎にピッチを検出する解析器の共通インターフェース
+ * 演算精度(倍精度/単精度)の異なる実装を生成時に選択できるようにする
+ */
+public interface PitchDetector
+{
+    // 演算精度
+    enum Precision
+    {
+        DOUBLE
+        {
+            @Override
+            public PitchDetector newDetector(int window_size, int sampling_rate)
+            {
+                return new PitchAnalyzer(window_size, sampling_rate);
+            }
+        },
+        FLOAT
+        {
+            @Override
+            public PitchDetector newDetector(int window_size, int sampling_rate)
+            {
+                return new FloatPitchAnalyzer(window_size, sampling_rate);
+            }
+        };
+
+        public abstract PitchDetector newDetector(int window_size, int sampling_rate);
+
+        public PitchDetector newDetector(int window_size)
+        {
+            return newDetector(window_size, PitchAnalyzer.DEFAULT_SAMPLING_RATE);
+        }
+    }
+
+    // audio_bufferの先頭(処理窓サイズ / 2)サンプルからピッチを算出する
+    void getExactPitch_hz(short[] audio_buffer, PitchData pitchData);
+
+    // リングバッファ中の最新の(処理窓サイズ / 2)サンプルからピッチを算出する
+    void getExactPitch_hz(SampleRingBuffer ring, PitchData pitchData);
+
+    // 追跡モードの切り替え(リングバッファからの解析のみ)
+    // 有効な間は前フレームのピッチ周期の前後半音だけを探索し，Clarityがclarity_threshold未満になるか
+    // 範囲外・1オクターブ上に移った場合は全範囲の探索に戻る
+    void setTracking(boolean tracking, double clarity_threshold);
+
+    // 探索するピッチの範囲(リングバッファからの解析のみ．既定では処理窓で検出できる全範囲)
+    // 範囲外の周期のNSDFは求めない
+    void setPitchRange(double min_hz, double max_hz);
+
+    // 1回の解析に使用する入力サンプル数(残りは0詰めされる)
+    int inputLength();
+}
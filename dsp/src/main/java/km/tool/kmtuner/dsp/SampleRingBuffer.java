@@ -0,0 +1,278 @@
+package km.tool.kmtuner.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 録音したサンプルを保持するリングバッファ
+ * 少しずつ読み込んだサンプルを書き足し，解析時には最新の一定区間だけを取り出す
+ * サンプルの2乗和(エネルギー)の累積値も書き込み時に更新しておき，
+ * 任意の区間のエネルギーを差分で求められるようにする
+ * (書き込みと読み出しは同じスレッドから行うこと)
+ *
+ * allocateDirect()で作った場合はサンプルをダイレクトバッファ(ネイティブのバイト順)に保持する
+ * 録音スレッドがdirectBlocks()のブロックへ直接書き込み(AudioRecord.read(ByteBuffer, int)など)，
+ * 解析スレッドがcommit()で書き込みを確定する(Java配列を経由しない)
+ * 書き込み側は確定済みの位置からlead_blocks個のブロックまでしか先行しないこと
+ */
+public final class SampleRingBuffer
+{
+    private final short[] buffer;       // サンプル(ダイレクトバッファの場合はnull)
+    private final ShortBuffer samples;  // ダイレクトバッファのサンプル(配列の場合はnull)
+    private final ByteBuffer[] blocks;  // ダイレクトバッファを先頭からブロック毎に区切ったもの
+    private final int size;      // 容量
+    private final int history;   // 上書きされないことが保証される最新のサンプル数
+    private final int mask;      // インデックスの剰余計算用(容量 - 1)
+    private long written = 0;    // これまでに書き込んだサンプルの総数
+    private final long[] energy; // energy[t & mask] = サンプル0～tの2乗和(16bitの2乗和なのでlongで誤差なく保持できる)
+    private long totalEnergy = 0; // 書き込んだ全サンプルの2乗和
+
+    public SampleRingBuffer(int capacity)
+    {
+        size = powerOfTwo(capacity);
+        buffer = new short[size];
+        samples = null;
+        blocks = null;
+        history = size;
+        energy = new long[size];
+        mask = size - 1;
+    }
+
+    private SampleRingBuffer(int history, int block_size, int lead_blocks)
+    {
+        size = powerOfTwo(history + block_size * lead_blocks);
+        buffer = null;
+        this.history = size - block_size * lead_blocks;
+        energy = new long[size];
+        mask = size - 1;
+
+        ByteBuffer bytes = ByteBuffer.allocateDirect(2 * size).order(ByteOrder.nativeOrder());
+        samples = bytes.asShortBuffer();
+
+        blocks = new ByteBuffer[size / block_size];
+        for(int i = 0; i < blocks.length; i++)
+        {
+            bytes.limit(2 * block_size * (i + 1));
+            bytes.position(2 * block_size * i);
+            blocks[i] = bytes.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    // 録音スレッドから直接書き込むリングバッファ
+    // history: 保持する最新のサンプル数(この分は書き込み側が先行していても上書きされない)
+    // block_size: 書き込みの単位(2のべき乗), lead_blocks: 書き込み側が確定済みの位置から先行できるブロック数
+    public static SampleRingBuffer allocateDirect(int history, int block_size, int lead_blocks)
+    {
+        if(Integer.bitCount(block_size) != 1)
+        {
+            throw new IllegalArgumentException("block_size must be a power of two: " + block_size);
+        }
+        return new SampleRingBuffer(history, block_size, lead_blocks);
+    }
+
+    private static int powerOfTwo(int capacity)
+    {
+        // 容量は2のべき乗に切り上げる
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if(size < capacity)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    public int capacity()
+    {
+        return size;
+    }
+
+    public boolean isDirect()
+    {
+        return samples != null;
+    }
+
+    // ダイレクトバッファをblock_size毎に区切ったブロック(ネイティブのバイト順)
+    // 書き込み済みのサンプル数がwrittenのとき，次に書き込むのは(written / block_size)番目(ブロック数の剰余)のブロック
+    public ByteBuffer[] directBlocks()
+    {
+        return blocks;
+    }
+
+    // 保持しているサンプル数(容量を超えた分は古いものから上書きされる)
+    public int available()
+    {
+        return (int) Math.min(written, (long) history);
+    }
+
+    // これまでに書き込んだサンプルの総数
+    public long written()
+    {
+        return written;
+    }
+
+    public void clear()
+    {
+        written = 0;
+        totalEnergy = 0;
+    }
+
+    public void write(short[] src, int offset, int length)
+    {
+        // 容量を超える場合は末尾の容量分だけを書き込めば良い
+        if(length > size)
+        {
+            written += length - size;
+            offset += length - size;
+            length = size;
+        }
+
+        int pos = (int) (written & mask);
+        int first = Math.min(length, size - pos);
+        if(buffer != null)
+        {
+            System.arraycopy(src, offset, buffer, pos, first);
+            System.arraycopy(src, offset + first, buffer, 0, length - first);
+        }
+        else
+        {
+            for(int i = 0; i < length; i++)
+            {
+                samples.put((pos + i) & mask, src[offset + i]);
+            }
+        }
+
+        // 新しいサンプルの分だけ累積エネルギーを更新する
+        long sum = totalEnergy;
+        for(int i = 0; i < length; i++)
+        {
+            long x = src[offset + i];
+            sum += x * x;
+            energy[(pos + i) & mask] = sum;
+        }
+        totalEnergy = sum;
+
+        written += length;
+    }
+
+    // ダイレクトバッファに直接書き込まれた次のlength個のサンプルを確定する(累積エネルギーを更新する)
+    public void commit(int length)
+    {
+        if(samples == null)
+        {
+            throw new IllegalStateException("not a direct buffer");
+        }
+        if(length > size)
+        {
+            throw new IllegalArgumentException("length: " + length);
+        }
+
+        int pos = (int) (written & mask);
+        long sum = totalEnergy;
+        for(int i = 0; i < length; i++)
+        {
+            long x = samples.get((pos + i) & mask);
+            sum += x * x;
+            energy[(pos + i) & mask] = sum;
+        }
+        totalEnergy = sum;
+
+        written += length;
+    }
+
+    // 先頭からindex個のサンプル(index = 0～written)の2乗和の累積値を返す
+    // 区間[a, b)のエネルギーは cumulativeEnergy(b) - cumulativeEnergy(a) で求まる
+    // (保持しているのは最新の容量 - 1個分の区間のみ)
+    public long cumulativeEnergy(long index)
+    {
+        if(index > written || index < written - size + 1)
+        {
+            throw new IllegalArgumentException("index out of range: " + index);
+        }
+
+        if(index == 0)
+        {
+            return 0;
+        }
+
+        return energy[(int) ((index - 1) & mask)];
+    }
+
+    // 最新のcount個のサンプルの絶対値の最大値
+    public int peakOfLatest(int count)
+    {
+        if(count > available())
+        {
+            throw new IllegalArgumentException(
+                    "requested " + count + " samples, but only " + available() + " available");
+        }
+
+        int peak = 0;
+        int pos = (int) ((written - count) & mask);
+        for(int i = 0; i < count; i++)
+        {
+            int x = Math.abs((int) sample((pos + i) & mask));
+            if(x > peak)
+                peak = x;
+        }
+        return peak;
+    }
+
+    // 最新のcount個のサンプルを時系列順にdstへ書き出す
+    public void copyLatest(double[] dst, int count)
+    {
+        if(count > available())
+        {
+            throw new IllegalArgumentException(
+                    "requested " + count + " samples, but only " + available() + " available");
+        }
+
+        int pos = (int) ((written - count) & mask);
+        if(buffer != null)
+        {
+            for(int i = 0; i < count; i++)
+            {
+                dst[i] = (double) buffer[(pos + i) & mask];
+            }
+        }
+        else
+        {
+            // ダイレクトバッファから直接変換する
+            for(int i = 0; i < count; i++)
+            {
+                dst[i] = (double) samples.get((pos + i) & mask);
+            }
+        }
+    }
+
+    // copyLatest()の単精度版
+    public void copyLatest(float[] dst, int count)
+    {
+        if(count > available())
+        {
+            throw new IllegalArgumentException(
+                    "requested " + count + " samples, but only " + available() + " available");
+        }
+
+        int pos = (int) ((written - count) & mask);
+        if(buffer != null)
+        {
+            for(int i = 0; i < count; i++)
+            {
+                dst[i] = (float) buffer[(pos + i) & mask];
+            }
+        }
+        else
+        {
+            for(int i = 0; i < count; i++)
+            {
+                dst[i] = (float) samples.get((pos + i) & mask);
+            }
+        }
+    }
+
+    private short sample(int index)
+    {
+        return (buffer != null) ? buffer[index] : samples.get(index);
+    }
+}
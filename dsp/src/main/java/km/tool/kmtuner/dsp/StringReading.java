@@ -0,0 +1,41 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * StrumAnalyzerが弦毎に返す解析結果
+ */
+public class StringReading
+{
+    private double pitch = 0;    // 推定した基本周波数 [Hz] (検出できなければ0)
+    private double cents = 0;    // 目標の周波数からの偏差 [cent]
+    private double clarity = 0;  // 最も強く鳴っている弦を1とした相対的な強さ(0～1)
+
+    public void setPitch(double pitch)
+    {
+        this.pitch = pitch;
+    }
+
+    public void setCents(double cents)
+    {
+        this.cents = cents;
+    }
+
+    public void setClarity(double clarity)
+    {
+        this.clarity = clarity;
+    }
+
+    public double getPitch()
+    {
+        return pitch;
+    }
+
+    public double getCents()
+    {
+        return cents;
+    }
+
+    public double getClarity()
+    {
+        return clarity;
+    }
+}
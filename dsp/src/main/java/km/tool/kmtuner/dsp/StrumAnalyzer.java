@@ -0,0 +1,177 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 全ての弦を同時に鳴らした(ストラムした)信号から，弦毎の目標周波数からのずれを求める解析器
+ * PitchAnalyzer.acf()と同じ実数FFTでパワスペクトルを1回だけ求め，
+ * 各弦について目標周波数の倍音(HARMONICS本)付近のスペクトルのピークを探して周波数を推定する
+ * 探索範囲は目標周波数から決まるため，コンストラクタでビンの範囲を表にしておく
+ * 窓関数を掛けない場合はサイドローブが隣の弦のピークに重なるため，入力にはハン窓を掛ける
+ */
+public class StrumAnalyzer
+{
+    // 1本の弦について調べる倍音の数(基本波を含む)
+    private static final int HARMONICS = 4;
+
+    // 各倍音のピークを探す範囲(目標周波数から±)
+    private static final double SEARCH_CENTS = 50.0;
+
+    private final double[] re;
+    private final double[] im;
+
+    private final int windowSize;
+    private final int samplingRate;
+
+    private final FFTPlan fftPlan;
+
+    private final double[] window;    // ハン窓(入力サンプル数分)
+    private final double[] targetHz;  // 各弦の目標周波数
+    private final int[] binLow;       // [弦 * HARMONICS + (倍音 - 1)] のピーク探索範囲の下端
+    private final int[] binHigh;      // 同上端(binLow > binHighの場合は探索しない)
+    private final double[] strength;  // 弦毎の倍音の強さの合計(作業領域)
+
+    public StrumAnalyzer(int window_size, int sampling_rate, double[] target_hz)
+    {
+        re = new double[window_size];
+        im = new double[window_size];
+
+        windowSize = window_size;
+        samplingRate = sampling_rate;
+
+        fftPlan = FFTPlan.get(window_size);
+
+        int length = inputLength();
+        window = new double[length];
+        for(int i = 0; i < length; i++)
+        {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (length - 1));
+        }
+
+        targetHz = target_hz.clone();
+        strength = new double[target_hz.length];
+
+        // ピークの両隣を補完に使うため，探索範囲は 1 ～ N/2-2 に制限する
+        double bin_hz = (double) sampling_rate / window_size;
+        double ratio = Math.pow(2.0, SEARCH_CENTS / 1200.0);
+        int max_bin = window_size / 2 - 2;
+        binLow = new int[target_hz.length * HARMONICS];
+        binHigh = new int[target_hz.length * HARMONICS];
+        for(int s = 0; s < target_hz.length; s++)
+        {
+            for(int h = 1; h <= HARMONICS; h++)
+            {
+                double hz = h * target_hz[s];
+                binLow[s * HARMONICS + h - 1] = Math.max(1, (int) Math.ceil(hz / ratio / bin_hz));
+                binHigh[s * HARMONICS + h - 1] = Math.min(max_bin, (int) Math.floor(hz * ratio / bin_hz));
+            }
+        }
+    }
+
+    // 1回の解析に使用する入力サンプル数(残りは0詰めされる)
+    public int inputLength()
+    {
+        return windowSize / 2;
+    }
+
+    public int targetCount()
+    {
+        return targetHz.length;
+    }
+
+    // audio_bufferの先頭(処理窓サイズ / 2)サンプルを解析し，readings[0]～[targetCount() - 1]に格納する
+    public void analyze(short[] audio_buffer, StringReading[] readings)
+    {
+        int length = inputLength();
+
+        for(int i = 0; i < length; i++)
+        {
+            re[i] = audio_buffer[i] * window[i];
+        }
+
+        estimate(readings);
+    }
+
+    // リングバッファ中の最新の(処理窓サイズ / 2)サンプルを解析する
+    public void analyze(SampleRingBuffer ring, StringReading[] readings)
+    {
+        int length = inputLength();
+
+        ring.copyLatest(re, length);
+        for(int i = 0; i < length; i++)
+        {
+            re[i] *= window[i];
+        }
+
+        estimate(readings);
+    }
+
+    private void estimate(StringReading[] readings)
+    {
+        for(int i = inputLength(); i < windowSize; i++)
+        {
+            re[i] = 0;
+        }
+
+        PitchAnalyzer.powerSpectrum(fftPlan, re, im);
+
+        double bin_hz = (double) samplingRate / windowSize;
+        double max_strength = 0;
+
+        for(int s = 0; s < targetHz.length; s++)
+        {
+            double sum_weight = 0;
+            double sum_cents = 0;
+
+            for(int h = 1; h <= HARMONICS; h++)
+            {
+                int low = binLow[s * HARMONICS + h - 1];
+                int high = binHigh[s * HARMONICS + h - 1];
+
+                // 探索範囲内の最大のビン
+                int peak = -1;
+                for(int k = low; k <= high; k++)
+                {
+                    if(peak < 0 || re[k] > re[peak])
+                        peak = k;
+                }
+                // 範囲の端が最大の場合は範囲外のピークの裾なので使わない
+                if(peak < 0 || re[peak] <= 0 || re[peak] < re[peak - 1] || re[peak] < re[peak + 1])
+                    continue;
+
+                // 対数パワの放物線補完(ガウス補完)でビン未満の位置を求める
+                double a = Math.log(re[peak - 1] + Double.MIN_VALUE);
+                double b = Math.log(re[peak]);
+                double c = Math.log(re[peak + 1] + Double.MIN_VALUE);
+                double denominator = a - 2 * b + c;
+                double delta = (denominator < 0) ? 0.5 * (a - c) / denominator : 0;
+
+                double hz = (peak + delta) * bin_hz;
+                double cents = 1200.0 * Math.log(hz / (h * targetHz[s])) / Math.log(2.0);
+
+                // 高次の倍音ほど他の弦の倍音と重なりやすいため，重みを下げる
+                double weight = Math.sqrt(re[peak]) / (h * h);
+                sum_weight += weight;
+                sum_cents += weight * cents;
+            }
+
+            StringReading reading = readings[s];
+            strength[s] = sum_weight;
+            if(sum_weight > 0)
+            {
+                double cents = sum_cents / sum_weight;
+                reading.setCents(cents);
+                reading.setPitch(targetHz[s] * Math.pow(2.0, cents / 1200.0));
+            }
+            else
+            {
+                reading.setCents(0);
+                reading.setPitch(0);
+            }
+            max_strength = Math.max(max_strength, sum_weight);
+        }
+
+        for(int s = 0; s < targetHz.length; s++)
+        {
+            readings[s].setClarity((max_strength > 0) ? strength[s] / max_strength : 0);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package km.tool.kmtuner.dsp;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 合成信号の入力元
+ * 倍音を含む音(各倍音の振幅を指定)に白色雑音を加え，
+ * 周波数をセント単位で直線的に変化させる(スイープ)こともできる
+ * 減衰(エンベロープ)を指定すると，一定間隔で弾き直す撥弦音のようになる
+ * 解析の精度・処理速度の測定用で，実時間を待たずに生成する
+ */
+public class SyntheticSource implements AudioSource
+{
+    private final int sampleRate;
+    private final double hz;             // 基本周波数(スイープの開始時点)
+
+    private double[] harmonics = {1.0};  // harmonics[k]: (k+1)倍音の振幅
+    private double amplitude = 0.3;      // フルスケールに対する振幅
+    private double noise = 0;            // フルスケールに対する雑音の標準偏差
+    private double sweepCents = 0;       // スイープの終了時点での周波数の変化量
+    private long sweepSamples = 0;       // スイープにかけるサンプル数(0ならスイープしない)
+    private long lengthSamples = -1;     // 生成するサンプル数(負なら無限)
+    private double decayFactor = 1.0;    // 1サンプル毎に振幅に掛ける係数(1なら減衰しない)
+    private long repeatSamples = 0;      // 弾き直す間隔のサンプル数(0なら弾き直さない)
+    private double envelope = 1.0;       // 現在の振幅の倍率
+
+    private final Random random;
+    private double phase = 0;            // 基本波の位相 [周期]
+    private long position = 0;           // 生成したサンプル数
+
+    public SyntheticSource(int sample_rate, double hz)
+    {
+        this(sample_rate, hz, 0);
+    }
+
+    // seed: 雑音の乱数の種(同じ種なら同じ信号を生成する)
+    public SyntheticSource(int sample_rate, double hz, long seed)
+    {
+        this.sampleRate = sample_rate;
+        this.hz = hz;
+        this.random = new Random(seed);
+    }
+
+    public SyntheticSource setHarmonics(double... amplitudes)
+    {
+        harmonics = amplitudes.clone();
+        return this;
+    }
+
+    public SyntheticSource setAmplitude(double amplitude)
+    {
+        this.amplitude = amplitude;
+        return this;
+    }
+
+    public SyntheticSource setNoise(double noise)
+    {
+        this.noise = noise;
+        return this;
+    }
+
+    // seconds秒かけて周波数をcentsセント変化させる(以降は変化後の周波数を保つ)
+    public SyntheticSource setSweep(double cents, double seconds)
+    {
+        sweepCents = cents;
+        sweepSamples = (long) (seconds * sampleRate);
+        return this;
+    }
+
+    // 振幅を時定数decay_seconds秒で指数的に減衰させ，repeat_seconds秒毎に弾き直す(0以下なら弾き直さない)
+    public SyntheticSource setEnvelope(double decay_seconds, double repeat_seconds)
+    {
+        decayFactor = Math.exp(-1.0 / (decay_seconds * sampleRate));
+        repeatSamples = (repeat_seconds > 0) ? (long) (repeat_seconds * sampleRate) : 0;
+        return this;
+    }
+
+    // seconds秒で入力を終える(負なら終わらない)
+    public SyntheticSource setDuration(double seconds)
+    {
+        lengthSamples = (seconds < 0) ? -1 : (long) (seconds * sampleRate);
+        return this;
+    }
+
+    @Override
+    public int sampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public boolean isLive()
+    {
+        return false;
+    }
+
+    @Override
+    public void start()
+    {
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length)
+    {
+        length = readableLength(length);
+        for(int i = 0; i < length; i++)
+        {
+            buffer[offset + i] = nextSample();
+        }
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int length)
+    {
+        length = readableLength(length);
+        int position = buffer.position();
+        for(int i = 0; i < length; i++)
+        {
+            buffer.putShort(position + 2 * i, nextSample());
+        }
+        return length;
+    }
+
+    // 今回生成するサンプル数(生成し終えていればEND_OF_STREAM)
+    private int readableLength(int length)
+    {
+        if(lengthSamples >= 0)
+        {
+            if(position >= lengthSamples)
+            {
+                return END_OF_STREAM;
+            }
+            length = (int) Math.min(length, lengthSamples - position);
+        }
+        return length;
+    }
+
+    private short nextSample()
+    {
+        double scale = amplitude * Short.MAX_VALUE;
+        double noise_scale = noise * Short.MAX_VALUE;
+
+        double x = 0;
+        for(int k = 0; k < harmonics.length; k++)
+        {
+            x += harmonics[k] * Math.sin(2 * Math.PI * (k + 1) * phase);
+        }
+        if(repeatSamples > 0 && position % repeatSamples == 0)
+        {
+            envelope = 1.0;
+        }
+        x = scale * envelope * x;
+        envelope *= decayFactor;
+        if(noise_scale > 0)
+        {
+            x += noise_scale * random.nextGaussian();
+        }
+
+        // 16bitの範囲に丸める
+        if(x > Short.MAX_VALUE)
+            x = Short.MAX_VALUE;
+        else if(x < Short.MIN_VALUE)
+            x = Short.MIN_VALUE;
+
+        // 瞬時周波数で位相を進める(スイープ中も位相は連続)
+        phase += currentHz() / sampleRate;
+        phase -= Math.floor(phase);
+        position++;
+
+        return (short) x;
+    }
+
+    @Override
+    public void release()
+    {
+    }
+
+    // 現在の瞬時周波数
+    public double currentHz()
+    {
+        if(sweepSamples <= 0)
+        {
+            return hz;
+        }
+        double progress = Math.min(1.0, (double) position / sweepSamples);
+        return hz * Math.pow(2.0, sweepCents * progress / 1200.0);
+    }
+}
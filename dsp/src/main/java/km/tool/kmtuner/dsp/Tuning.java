@@ -0,0 +1,74 @@
+package km.tool.kmtuner.dsp;
+
+/**
+ * 開放弦の音程の組(チューニング)
+ * 各弦の音程はMIDIノート番号(A4 = 69)で持ち，基準ピッチ(A4の周波数)はNoteClassifier側で決める
+ * 弦の並びは低音弦から順に指定する(表示上の弦番号は高音弦が1)
+ */
+public final class Tuning
+{
+    public static final Tuning STANDARD     = new Tuning("Standard", 40, 45, 50, 55, 59, 64);   // E2 A2 D3 G3 B3 E4
+    public static final Tuning DROP_D       = new Tuning("Drop D", 38, 45, 50, 55, 59, 64);     // D2 A2 D3 G3 B3 E4
+    public static final Tuning SEVEN_STRING = new Tuning("7-string", 35, 40, 45, 50, 55, 59, 64); // B1 E2 ... E4
+    public static final Tuning BASS         = new Tuning("Bass", 28, 33, 38, 43);               // E1 A1 D2 G2
+
+    // 表示の弦番号は1桁のため
+    public static final int MAX_STRINGS = 9;
+
+    private final String name;
+    private final int[] notes;      // 各弦のMIDIノート番号(低音弦から昇順)
+    private final String[] labels;  // 表示用の文字列(弦番号 + 音名．例: "6E")
+
+    public Tuning(String name, int... notes)
+    {
+        if(notes.length == 0 || notes.length > MAX_STRINGS)
+        {
+            throw new IllegalArgumentException("strings: " + notes.length);
+        }
+        for(int i = 0; i < notes.length; i++)
+        {
+            if(notes[i] < 0 || notes[i] >= NoteClassifier.NOTE_COUNT
+                    || (i > 0 && notes[i] <= notes[i - 1]))
+            {
+                throw new IllegalArgumentException("notes[" + i + "]: " + notes[i]);
+            }
+        }
+
+        this.name = name;
+        this.notes = notes.clone();
+
+        labels = new String[notes.length];
+        for(int i = 0; i < notes.length; i++)
+        {
+            labels[i] = (notes.length - i) + NoteClassifier.noteName(notes[i]);
+        }
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    public int stringCount()
+    {
+        return notes.length;
+    }
+
+    // index番目(0が最低音弦)の弦のMIDIノート番号
+    public int note(int index)
+    {
+        return notes[index];
+    }
+
+    // index番目(0が最低音弦)の弦の表示用文字列
+    public String label(int index)
+    {
+        return labels[index];
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}